@@ -11,7 +11,6 @@ import com.serotonin.bacnet4j.service.Service;
 import com.serotonin.bacnet4j.service.unconfirmed.WhoIsRequest;
 import com.serotonin.bacnet4j.transport.DefaultTransport;
 import com.serotonin.bacnet4j.transport.Transport;
-import com.serotonin.bacnet4j.type.Encodable;
 import com.serotonin.bacnet4j.type.constructed.Address;
 import com.serotonin.bacnet4j.type.constructed.Choice;
 import com.serotonin.bacnet4j.type.constructed.DateTime;
@@ -28,19 +27,16 @@ import com.serotonin.bacnet4j.type.primitive.Boolean;
 import com.serotonin.bacnet4j.type.primitive.CharacterString;
 import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
 import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
-import com.serotonin.bacnet4j.util.RequestUtils;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import org.dsa.iot.dslink.node.Node;
@@ -49,6 +45,7 @@ import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
 import org.dsa.iot.dslink.node.actions.EditorType;
 import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
 import org.dsa.iot.dslink.node.actions.table.Row;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
@@ -70,6 +67,7 @@ public abstract class BacnetConn implements DeviceEventListener {
     static final String ACTION_STOP = "stop";
     static final String ACTION_RESTART = "restart";
     static final String ACTION_DISCOVER_DEVICES = "discover devices";
+    static final String ACTION_SWEEP_DEVICES = "sweep devices";
     static final String ACTION_ADD_DEVICE = "add device";
     static final String ACTION_ADD_DEVICE_BY_NUMBER = "add device by number";
     static final String ACTION_ADD_DEVICE_BY_ADDR = "add device by address";
@@ -85,20 +83,27 @@ public abstract class BacnetConn implements DeviceEventListener {
     static final String NODE_STATUS_STOPPED = "Stopped";
     static final String NODE_DISCOVERED = "Discovered";
 
+    static final int DEFAULT_POLLING_THREADS = 2;
+
     protected final Node node;
     protected final BacnetLink link;
     private final Node statnode;
     private final Node discoveredNode;
     private final BacnetLocalDevice localController;
     private final ScheduledThreadPoolExecutor stpe = Objects.createDaemonThreadPool();
+    private final PollingScheduler pollingScheduler;
+    private final DeviceBringUp bringUp;
+    private final IAmRegistry iAmRegistry = new IAmRegistry(stpe);
 
-    private final Map<Integer, RemoteDevice> discovered = new ConcurrentHashMap<>();
+    private final DiscoveredDevices discovered;
+    private volatile WhoIsSweep sweep = null;
     Lock discoveryLock = new ReentrantLock();
-    LocalDevice localDevice = null;
-    Transport transport = null;
-    final ReadWriteMonitor monitor = new ReadWriteMonitor();
+    final LifecycleGuard<LocalDevice> localDevice = new LifecycleGuard<>();
+    volatile Transport transport = null;
 
-    final Set<BacnetDevice> devices = new HashSet<>();
+    final Set<BacnetDevice> devices = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, BacnetDevice> devicesByInstance = new ConcurrentHashMap<>();
+    private final Map<Address, BacnetDevice> devicesByAddress = new ConcurrentHashMap<>();
     private final Map<Long, BacnetObject> covSubs = new ConcurrentHashMap<>();
     final Object covSubsLock = new Object();
     private final Random random = new Random();
@@ -114,6 +119,7 @@ public abstract class BacnetConn implements DeviceEventListener {
     int localDeviceId;
     String localDeviceName;
     String localDeviceVendor;
+    int pollingThreads;
     long defaultInterval;
 
     protected BacnetConn(BacnetLink link, Node node) {
@@ -132,6 +138,12 @@ public abstract class BacnetConn implements DeviceEventListener {
             localNode = node.createChild(NODE_LOCAL, true).build();
         }
         this.localController = new BacnetLocalDevice(this, localNode);
+
+        this.pollingThreads = Utils.getAndMaybeSetRoConfigNum(node, "Polling Threads", DEFAULT_POLLING_THREADS)
+                                   .intValue();
+        this.pollingScheduler = new PollingScheduler(node.getName(), stpe, pollingThreads);
+        this.bringUp = new DeviceBringUp(this, node.getName());
+        this.discovered = new DiscoveredDevices(this, stpe, node.getName(), () -> makeAddDiscoveredDeviceAction());
     }
 
     public static BacnetConn buildConn(BacnetLink link, Node node) {
@@ -226,54 +238,21 @@ public abstract class BacnetConn implements DeviceEventListener {
         makeRemoveAction();
         makeEditAction();
 
-        try {
-            monitor.checkInWriter();
-            try {
-                Network network = getNetwork();
-                transport = new DefaultTransport(network);
-                network.setTransport(transport);
-                transport.setRetries(retries);
-                transport.setTimeout(timeout);
-                transport.setSegTimeout(segmentTimeout);
-                transport.setSegWindow(segmentWindow);
-                localDevice = new LocalDevice(localDeviceId, transport);
-                try {
-                    localDevice.writePropertyInternal(PropertyIdentifier.objectName,
-                                                      new CharacterString(localDeviceName));
-                    localDevice.writePropertyInternal(PropertyIdentifier.vendorName,
-                                                      new CharacterString(localDeviceVendor));
-                } catch (Exception e1) {
-                    LOGGER.debug("", e1);
-                }
-                localDevice.getEventHandler().addListener(this);
-                localDevice.initialize();
-                setupRouters();
-                localDevice.sendGlobalBroadcast(localDevice.getIAm());
-                LOGGER.info("sent IAm - " + localDevice.getInstanceNumber());
-//				localDevice.sendGlobalBroadcast(new WhoIsRequest());
-            } catch (Exception e) {
-                LOGGER.debug("", e);
-                statnode.setValue(
-                        new Value("Error in initializing local device :" + e.getMessage()));
-                if (localDevice != null && localDevice.isInitialized()) {
-                    localDevice.terminate();
-                }
-                localDevice = null;
-                transport = null;
+        LocalDevice ld = localDevice.computeIfAbsent(() -> createLocalDevice(), dropped -> {
+            if (dropped.isInitialized()) {
+                dropped.terminate();
             }
-            monitor.checkOutWriter();
-        } catch (InterruptedException ignored) {
-
-        }
+        });
 
         if (!NODE_STATUS_STOPPED.equals(statnode.getValue().getString())) {
             makeStopAction();
         }
         makeRestartAction();
 
-        if (localDevice != null) {
+        if (ld != null) {
             statnode.setValue(new Value(NODE_STATUS_CONNECTED));
             makeDiscoverAction();
+            makeSweepAction();
             makeAddDiscoveredDeviceAction();
             makeAddDeviceByNumberAction();
             makeAddDeviceByAddressAction();
@@ -286,6 +265,44 @@ public abstract class BacnetConn implements DeviceEventListener {
 
     }
 
+    private LocalDevice createLocalDevice() {
+        LocalDevice ld = null;
+        try {
+            Network network = getNetwork();
+            transport = new DefaultTransport(network);
+            network.setTransport(transport);
+            transport.setRetries(retries);
+            transport.setTimeout(timeout);
+            transport.setSegTimeout(segmentTimeout);
+            transport.setSegWindow(segmentWindow);
+            ld = new LocalDevice(localDeviceId, transport);
+            try {
+                ld.writePropertyInternal(PropertyIdentifier.objectName,
+                                         new CharacterString(localDeviceName));
+                ld.writePropertyInternal(PropertyIdentifier.vendorName,
+                                         new CharacterString(localDeviceVendor));
+            } catch (Exception e1) {
+                LOGGER.debug("", e1);
+            }
+            ld.getEventHandler().addListener(this);
+            ld.initialize();
+            setupRouters();
+            ld.sendGlobalBroadcast(ld.getIAm());
+            LOGGER.info("sent IAm - " + ld.getInstanceNumber());
+//			ld.sendGlobalBroadcast(new WhoIsRequest());
+            return ld;
+        } catch (Exception e) {
+            LOGGER.debug("", e);
+            statnode.setValue(
+                    new Value("Error in initializing local device :" + e.getMessage()));
+            if (ld != null && ld.isInitialized()) {
+                ld.terminate();
+            }
+            transport = null;
+            return null;
+        }
+    }
+
     abstract void setupRouters();
 
     abstract Network getNetwork() throws Exception;
@@ -295,6 +312,8 @@ public abstract class BacnetConn implements DeviceEventListener {
         if (node.getChildren() == null) {
             return;
         }
+        // Devices that answer this are located from their I-Am, without a WhoIs of their own
+        bringUp.sweep();
 
         for (Node child : node.getChildren().values()) {
             if (child.getAction() == null && !child.getName().equals(NODE_STATUS) && !child
@@ -309,6 +328,14 @@ public abstract class BacnetConn implements DeviceEventListener {
         return stpe;
     }
 
+    PollingScheduler getPollingScheduler() {
+        return pollingScheduler;
+    }
+
+    DeviceBringUp getBringUp() {
+        return bringUp;
+    }
+
     /////////////////////////////////////////////////////////////////////////////////////////
     // Actions
     /////////////////////////////////////////////////////////////////////////////////////////
@@ -350,17 +377,16 @@ public abstract class BacnetConn implements DeviceEventListener {
 
     protected void stop() {
         statnode.setValue(new Value(NODE_STATUS_STOPPED));
-        try {
-            monitor.checkInWriter();
-            if (localDevice != null && localDevice.isInitialized()) {
-                localDevice.terminate();
-            }
-            localDevice = null;
-            transport = null;
-            monitor.checkOutWriter();
-        } catch (InterruptedException ignored) {
-
+        LocalDevice ld = localDevice.clear();
+        iAmRegistry.clear();
+        for (BacnetDevice device : devices) {
+            device.writeQueue.clear();
+            device.governor.clear();
+        }
+        if (ld != null && ld.isInitialized()) {
+            ld.terminate();
         }
+        transport = null;
     }
 
     private void restart() {
@@ -388,6 +414,8 @@ public abstract class BacnetConn implements DeviceEventListener {
         localDeviceName = Utils.safeGetRoConfigString(node, "Local Device Name", localDeviceName);
         localDeviceVendor = Utils
                 .safeGetRoConfigString(node, "Local Device Vendor", localDeviceVendor);
+        pollingThreads = Utils.safeGetRoConfigNum(node, "Polling Threads", pollingThreads).intValue();
+        pollingScheduler.setThreads(pollingThreads);
     }
 
     private void makeDiscoverAction() {
@@ -403,19 +431,75 @@ public abstract class BacnetConn implements DeviceEventListener {
         }
     }
 
+    private void makeSweepAction() {
+        Action act = new Action(Permission.READ, event -> sweep(event));
+        act.addParameter(new Parameter("Device Instance Range Low Limit", ValueType.NUMBER, new Value(0)));
+        act.addParameter(new Parameter("Device Instance Range High Limit", ValueType.NUMBER,
+                                       new Value(WhoIsSweep.MAX_INSTANCE)));
+        act.addParameter(new Parameter("Range Size", ValueType.NUMBER,
+                                       new Value(WhoIsSweep.DEFAULT_RANGE_SIZE)));
+        act.addParameter(new Parameter("Requests per Second", ValueType.NUMBER,
+                                       new Value(WhoIsSweep.DEFAULT_RATE)));
+        act.addParameter(new Parameter("Split Threshold", ValueType.NUMBER,
+                                       new Value(WhoIsSweep.DEFAULT_SPLIT_THRESHOLD))
+                .setDescription("Ranges with at least this many answers are split in two and asked again"));
+        act.addParameter(new Parameter("Retries", ValueType.NUMBER, new Value(WhoIsSweep.DEFAULT_RETRIES)));
+        act.addResult(new Parameter("Low Limit", ValueType.NUMBER));
+        act.addResult(new Parameter("High Limit", ValueType.NUMBER));
+        act.addResult(new Parameter("Attempt", ValueType.NUMBER));
+        act.addResult(new Parameter("Devices", ValueType.NUMBER));
+        act.addResult(new Parameter("Status", ValueType.STRING));
+        act.setResultType(ResultType.STREAM);
+        Node anode = node.getChild(ACTION_SWEEP_DEVICES, true);
+        if (anode == null) {
+            node.createChild(ACTION_SWEEP_DEVICES, true).setAction(act).build()
+                .setSerializable(false);
+        } else {
+            anode.setAction(act);
+        }
+    }
+
+    private void sweep(ActionResult event) {
+        int low = event.getParameter("Device Instance Range Low Limit", new Value(0)).getNumber().intValue();
+        int high = event.getParameter("Device Instance Range High Limit", new Value(WhoIsSweep.MAX_INSTANCE))
+                        .getNumber().intValue();
+        int rangeSize = event.getParameter("Range Size", new Value(WhoIsSweep.DEFAULT_RANGE_SIZE)).getNumber()
+                             .intValue();
+        double rate = event.getParameter("Requests per Second", new Value(WhoIsSweep.DEFAULT_RATE)).getNumber()
+                           .doubleValue();
+        int threshold = event.getParameter("Split Threshold", new Value(WhoIsSweep.DEFAULT_SPLIT_THRESHOLD))
+                             .getNumber().intValue();
+        int retries = event.getParameter("Retries", new Value(WhoIsSweep.DEFAULT_RETRIES)).getNumber()
+                           .intValue();
+        WhoIsSweep s = new WhoIsSweep(this, rangeSize, rate, threshold, retries);
+        synchronized (this) {
+            if (sweep != null) {
+                event.getTable().addRow(Row.make(new Value(low), new Value(high), new Value((Number) null),
+                                                 new Value((Number) null),
+                                                 new Value("Another sweep is already running")));
+                return;
+            }
+            sweep = s;
+        }
+        try {
+            s.run(event, low, high);
+        } finally {
+            sweep = null;
+        }
+    }
+
+    DiscoveredDevices getDiscovered() {
+        return discovered;
+    }
+
     private void discover(ActionResult event) {
         Value low = event.getParameter("Device Instance Range Low Limit");
         Value hi = event.getParameter("Device Instance Range High Limit");
         WhoIsRequest whoIs = (low == null || hi == null) ? new WhoIsRequest()
                 : new WhoIsRequest(low.getNumber().intValue(), hi.getNumber().intValue());
-        try {
-            monitor.checkInReader();
-            if (localDevice != null) {
-                localDevice.sendGlobalBroadcast(whoIs);
-            }
-            monitor.checkOutReader();
-        } catch (InterruptedException ignored) {
-
+        LocalDevice ld = localDevice.get();
+        if (ld != null) {
+            ld.sendGlobalBroadcast(whoIs);
         }
 //		int lastLength = 0;
 //		for (int i=0; i<(timeout/500) + 2; i++) {
@@ -434,7 +518,7 @@ public abstract class BacnetConn implements DeviceEventListener {
 //		LOGGER.info("updating add discovered device action");
         Action act = new Action(Permission.READ, event -> addDiscoveredDevice(event));
 
-        Set<String> enums = Utils.getDeviceEnum(discovered);
+        Set<String> enums = discovered.getLabels();
         JsonArray ary = new JsonArray();
         for (String s : enums) {
             ary.add(s);
@@ -516,7 +600,7 @@ public abstract class BacnetConn implements DeviceEventListener {
     }
 
     private void addAllDiscovered(ActionResult event) {
-        for (Entry<Integer, RemoteDevice> entry : discovered.entrySet()) {
+        for (Entry<Integer, RemoteDevice> entry : discovered.getDevices().entrySet()) {
             Integer inst = entry.getKey();
             RemoteDevice d = entry.getValue();
             if (d == null || d.getDeviceProperty(PropertyIdentifier.objectName) == null) {
@@ -550,18 +634,13 @@ public abstract class BacnetConn implements DeviceEventListener {
     private void addDeviceByNumber(ActionResult event) {
         int inst = event.getParameter("Instance Number", ValueType.NUMBER).getNumber().intValue();
         RemoteDevice d = null;
-        try {
-            monitor.checkInReader();
-            if (localDevice != null) {
-                try {
-                    d = localDevice.getRemoteDeviceBlocking(inst);
-                } catch (BACnetException e) {
-                    LOGGER.debug("", e);
-                }
+        LocalDevice ld = localDevice.get();
+        if (ld != null) {
+            try {
+                d = ld.getRemoteDeviceBlocking(inst);
+            } catch (BACnetException e) {
+                LOGGER.debug("", e);
             }
-            monitor.checkOutReader();
-        } catch (InterruptedException ignored) {
-
         }
         addDevice(event, d);
     }
@@ -575,110 +654,25 @@ public abstract class BacnetConn implements DeviceEventListener {
     }
 
     RemoteDevice findRemoteDeviceByAddress(final Address address) {
-        if (address == null) {
-            return null;
-        }
-        final Queue<RemoteDevice> wrapper = new ConcurrentLinkedQueue<>();
-        DeviceEventListener listener = new DeviceEventListener() {
-            @Override
-            public void listenerException(Throwable e) {
-            }
-
-            @Override
-            public void iAmReceived(RemoteDevice d) {
-                if (d.getAddress().equals(address)) {
-                    synchronized (this) {
-                        wrapper.add(d);
-                        this.notifyAll();
-                    }
-                }
-            }
-
-            @Override
-            public boolean allowPropertyWrite(Address from, BACnetObject obj, PropertyValue pv) {
-                return true;
-            }
-
-            @Override
-            public void propertyWritten(Address from, BACnetObject obj, PropertyValue pv) {
-            }
-
-            @Override
-            public void iHaveReceived(RemoteDevice d, RemoteObject o) {
-            }
-
-            @Override
-            public void covNotificationReceived(UnsignedInteger subscriberProcessIdentifier,
-                                                ObjectIdentifier initiatingDeviceIdentifier,
-                                                ObjectIdentifier monitoredObjectIdentifier,
-                                                UnsignedInteger timeRemaining,
-                                                SequenceOf<PropertyValue> listOfValues) {
-            }
-
-            @Override
-            public void eventNotificationReceived(UnsignedInteger processIdentifier,
-                                                  ObjectIdentifier initiatingDeviceIdentifier,
-                                                  ObjectIdentifier eventObjectIdentifier,
-                                                  TimeStamp timeStamp,
-                                                  UnsignedInteger notificationClass,
-                                                  UnsignedInteger priority,
-                                                  EventType eventType, CharacterString messageText,
-                                                  NotifyType notifyType,
-                                                  Boolean ackRequired, EventState fromState,
-                                                  EventState toState,
-                                                  NotificationParameters eventValues) {
-            }
-
-            @Override
-            public void textMessageReceived(ObjectIdentifier textMessageSourceDevice,
-                                            Choice messageClass,
-                                            MessagePriority messagePriority,
-                                            CharacterString message) {
-            }
-
-            @Override
-            public void synchronizeTime(Address from, DateTime dateTime, boolean utc) {
-            }
-
-            @Override
-            public void requestReceived(Address from, Service service) {
-            }
-        };
-        boolean disconnected = false;
         try {
-            monitor.checkInReader();
-            if (localDevice != null) {
-                localDevice.getEventHandler().addListener(listener);
-                localDevice.send(address, new WhoIsRequest());
-            } else {
-                disconnected = true;
-            }
-            monitor.checkOutReader();
-        } catch (InterruptedException ignored) {
-
-        }
-        if (disconnected) {
-            return null;
+            return findRemoteDeviceByAddressAsync(address).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.debug("", e);
         }
-        synchronized (listener) {
-            if (wrapper.isEmpty()) {
-                try {
-                    listener.wait(timeout + 1000);
-                } catch (InterruptedException ignored) {
-
-                }
-            }
-            try {
-                monitor.checkInReader();
-                if (localDevice != null) {
-                    localDevice.getEventHandler().removeListener(listener);
-                }
-                monitor.checkOutReader();
-            } catch (InterruptedException ignored) {
+        return null;
+    }
 
-            }
-            return wrapper.poll();
+    /**
+     * @return completes with the device at the address, or with null if it doesn't answer a WhoIs
+     */
+    CompletableFuture<RemoteDevice> findRemoteDeviceByAddressAsync(final Address address) {
+        LocalDevice ld = localDevice.get();
+        if (address == null || ld == null) {
+            return CompletableFuture.completedFuture(null);
         }
+        return iAmRegistry.lookup(ld, address, timeout + 1000);
     }
 
     private void addDevice(ActionResult event, RemoteDevice d) {
@@ -771,49 +765,75 @@ public abstract class BacnetConn implements DeviceEventListener {
     @Override
     public void iAmReceived(final RemoteDevice d) {
         LOGGER.debug("iAm recieved: " + d);
-        discovered.put(d.getInstanceNumber(), d);
-        Objects.getDaemonThreadPool().schedule(() -> deviceDiscovered(d), 0, TimeUnit.MILLISECONDS);
+        iAmRegistry.iAmReceived(d);
+        bringUp.iAmReceived(d);
+        discovered.add(d);
+        WhoIsSweep s = sweep;
+        if (s != null) {
+            s.iAmReceived(d);
+        }
     }
 
-    private void deviceDiscovered(RemoteDevice d) {
-        if (d == null) {
-            return;
-        }
-        Encodable enc = null;
-        try {
-            monitor.checkInReader();
-            try {
-                enc = RequestUtils
-                        .sendReadPropertyAllowNull(localDevice, d, d.getObjectIdentifier(),
-                                                   PropertyIdentifier.objectName);
-            } catch (BACnetException e) {
-                LOGGER.debug("", e);
+    void addDevice(BacnetDevice dev) {
+        devices.add(dev);
+        indexDevice(dev);
+    }
+
+    void removeDevice(BacnetDevice dev) {
+        devices.remove(dev);
+        bringUp.cancel(dev);
+        synchronized (devicesByInstance) {
+            devicesByInstance.remove(dev.indexedInstance, dev);
+            if (dev.indexedAddress != null) {
+                devicesByAddress.remove(dev.indexedAddress, dev);
             }
-            monitor.checkOutReader();
-        } catch (InterruptedException ignored) {
+            dev.indexedInstance = -1;
+            dev.indexedAddress = null;
         }
-        if (enc != null) {
-            d.setDeviceProperty(PropertyIdentifier.objectName, enc);
+    }
+
+    /**
+     * Updates the lookup entries for a device after its instance number or address may have
+     * changed.
+     */
+    void indexDevice(BacnetDevice dev) {
+        int instance = dev.instanceNumber;
+        Address address = dev.getAddress();
+        synchronized (devicesByInstance) {
+            if (!devices.contains(dev)) {
+                return;
+            }
+            if (dev.indexedInstance != instance) {
+                devicesByInstance.remove(dev.indexedInstance, dev);
+            }
+            if (dev.indexedAddress != null && !dev.indexedAddress.equals(address)) {
+                devicesByAddress.remove(dev.indexedAddress, dev);
+            }
+            if (instance >= 0) {
+                devicesByInstance.put(instance, dev);
+            }
+            if (address != null) {
+                devicesByAddress.put(address, dev);
+            }
+            dev.indexedInstance = instance;
+            dev.indexedAddress = address;
         }
-        makeAddDiscoveredDeviceAction();
-        LOGGER.trace("iAm processed: " + d);
-//		if (discoveryLock.tryLock()) {
-//			try {
-//				Thread.sleep(500);
-//				makeAddDiscoveredDeviceAction();
-//			} catch (InterruptedException e) {
-//			} finally {
-//				discoveryLock.unlock();
-//			}	
-//		}
+    }
 
+    BacnetDevice getDevice(int instanceNumber) {
+        return devicesByInstance.get(instanceNumber);
+    }
+
+    BacnetDevice getDevice(Address address) {
+        return devicesByAddress.get(address);
     }
 
     public long addCovSub(BacnetObject obj) {
         synchronized (covSubsLock) {
-            long id = random.nextLong();
+            // Subscriber process identifiers are Unsigned32
+            long id = random.nextInt() & 0xFFFFFFFFL;
             while (covSubs.containsKey(id)) {
-                id = random.nextLong();
+                id = random.nextInt() & 0xFFFFFFFFL;
             }
             covSubs.put(id, obj);
             return id;
@@ -869,14 +889,12 @@ public abstract class BacnetConn implements DeviceEventListener {
                                           CharacterString messageText, NotifyType notifyType,
                                           Boolean ackRequired, EventState fromState,
                                           EventState toState, NotificationParameters eventValues) {
-        for (BacnetDevice dev : devices) {
-            if (initiatingDeviceIdentifier.getInstanceNumber() == dev.instanceNumber) {
-                dev.eventNotificationReceived(processIdentifier, eventObjectIdentifier, timeStamp,
-                                              notificationClass,
-                                              priority, eventType, messageText, notifyType,
-                                              ackRequired, fromState, toState, eventValues);
-
-            }
+        BacnetDevice dev = getDevice(initiatingDeviceIdentifier.getInstanceNumber());
+        if (dev != null) {
+            dev.eventNotificationReceived(processIdentifier, eventObjectIdentifier, timeStamp,
+                                          notificationClass,
+                                          priority, eventType, messageText, notifyType,
+                                          ackRequired, fromState, toState, eventValues);
         }
 
     }
@@ -1,5 +1,6 @@
 package bacnet;
 
+import com.serotonin.bacnet4j.LocalDevice;
 import com.serotonin.bacnet4j.RemoteDevice;
 import com.serotonin.bacnet4j.ServiceFuture;
 import com.serotonin.bacnet4j.exception.BACnetException;
@@ -7,7 +8,6 @@ import com.serotonin.bacnet4j.service.acknowledgement.GetEventInformationAck;
 import com.serotonin.bacnet4j.service.acknowledgement.GetEventInformationAck.EventSummary;
 import com.serotonin.bacnet4j.service.confirmed.AcknowledgeAlarmRequest;
 import com.serotonin.bacnet4j.service.confirmed.GetEventInformationRequest;
-import com.serotonin.bacnet4j.service.confirmed.SubscribeCOVRequest;
 import com.serotonin.bacnet4j.type.Encodable;
 import com.serotonin.bacnet4j.type.constructed.Address;
 import com.serotonin.bacnet4j.type.constructed.BACnetArray;
@@ -20,12 +20,14 @@ import com.serotonin.bacnet4j.type.enumerated.EventState;
 import com.serotonin.bacnet4j.type.enumerated.EventType;
 import com.serotonin.bacnet4j.type.enumerated.NotifyType;
 import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
 import com.serotonin.bacnet4j.type.notificationParameters.NotificationParameters;
 import com.serotonin.bacnet4j.type.primitive.Boolean;
 import com.serotonin.bacnet4j.type.primitive.CharacterString;
 import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
 import com.serotonin.bacnet4j.type.primitive.Time;
 import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+import com.serotonin.bacnet4j.util.DiscoveryUtils;
 import com.serotonin.bacnet4j.util.RequestUtils;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -34,9 +36,11 @@ import java.text.ParseException;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -44,7 +48,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import org.apache.commons.lang3.tuple.Pair;
+import java.util.concurrent.atomic.AtomicLong;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.Permission;
@@ -70,52 +74,92 @@ public class BacnetDevice {
 
 	static final String NODE_STATUS = "STATUS";
 	static final String NODE_EVENTS = "EVENTS";
+	static final String NODE_METRICS = "METRICS";
+	static final String METRIC_POLL_LAG = "Poll Lag (ms)";
+	static final String METRIC_UPDATES_FORWARDED = "Updates Forwarded";
+	static final String METRIC_UPDATES_SUPPRESSED = "Updates Suppressed";
+	static final String METRIC_REQUEST_QUEUE_DEPTH = "Request Queue Depth";
+	static final String METRIC_REQUESTS_OUTSTANDING = "Requests Outstanding";
+	static final String METRIC_REQUEST_WAIT = "Request Wait (ms)";
+	static final String METRIC_BREAKER_STATE = "Circuit Breaker";
+	static final String METRIC_BREAKER_TRANSITIONS = "Circuit Breaker Transitions";
+	static final String METRIC_REQUESTS_SKIPPED = "Requests Skipped";
+	static final String METRIC_WRITES_FAILED = "Writes Failed";
+	static final String METRIC_LAST_WRITE_ERROR = "Last Write Error";
+	static final long METRICS_PUBLISH_SECONDS = 10;
 	static final String ACTION_REMOVE = "remove";
 	static final String ACTION_EDIT = "edit";
 	static final String ACTION_ADD_FOLDER = "add folder";
 	static final String ACTION_DISCOVER_OBJECTS = "discover objects";
+	static final String ACTION_BULK_DISCOVER_OBJECTS = "bulk discover objects";
 	static final String ACTION_ADD_OBJECT = "add object";
 	static final String ACTION_STOP = "stop";
 	static final String ACTION_RESTART = "restart";
 	static final String ACTION_CLEAR = "clear";
 	static final String ACTION_GET_EVENTS = "get event information";
+	static final String ACTION_GET_RECENT_EVENTS = "get recent events";
 	static final String ACTION_EXPORT = "export";
 	static final String ACTION_IMPORT = "import folder";
 	static final String ACTION_ACKNOWLEDGE_ALARM = "acknowledge alarm";
 	static final String EVENT_ACTION_ACKNOWLEDGE = "acknowledge";
 	static final String EVENT_ACTION_DISMISS = "dismiss";
+	static final int DEFAULT_EVENT_RETENTION = 500;
+	// Most unacknowledged alarms shown as nodes under EVENTS, older ones are only kept in the event log
+	static final int MAX_ALARM_NODES = 50;
+	private static final String[] EVENT_FIELDS = { "Timestamp", "Event Object Identifier", "Event Type", "Notify Type",
+			"From State", "To State", "Priority", "Notification Class", "Process Identifier", "Ack Required",
+			"Message Text", "Event State" };
 
 	final BacnetConn conn;
 	private final Node node;
 	private final Node statnode;
 	private final Node eventsnode;
-	private int eventCount = 0;
+	private final Node metricsnode;
+	private final EventLog eventLog;
+	// Nodes of unacknowledged alarms by event object identifier, oldest first
+	private final Map<String, Node> alarmNodes = new LinkedHashMap<>();
 
-	RemoteDevice remoteDevice;
-	final ReadWriteMonitor monitor = new ReadWriteMonitor();
+	final LifecycleGuard<RemoteDevice> remoteDevice = new LifecycleGuard<>();
 
 	int instanceNumber;
+	// Keys this device is currently registered under in its connection's lookup maps
+	int indexedInstance = -1;
+	Address indexedAddress = null;
 	private int networkNumber;
 	private String addressString;
 	private double pollingIntervalSeconds;
+	private boolean adaptivePolling;
+	private double maxPollingIntervalSeconds;
+	private long pollCycleCount = 0;
+	private int maxOutstandingRequests;
+	private double maxRequestRate;
 	private boolean covConfirmed;
 	private long covLifetime;
 
 	final Set<BacnetObject> objects = new HashSet<>();
 	private final Map<BacnetProperty, ObjectPropertyReference> subscribed = new ConcurrentHashMap<>();
-	private ScheduledFuture<?> pollingFuture = null;
+	private final PollPlanner planner = new PollPlanner();
+	final CovSubscriptionManager covManager = new CovSubscriptionManager(this);
+	final WriteQueue writeQueue = new WriteQueue(this);
+	final CircuitBreaker breaker = new CircuitBreaker(this);
+	final RequestGovernor governor;
+	final DeviceMetadataCache metadata;
+	// Restored objects without a name, which get it from the metadata cache or a one-time read
+	private final List<BacnetObject> unnamedObjects = new ArrayList<>();
+	private volatile PollCycle activeCycle = null;
+	private PollingScheduler.Task pollingTask = null;
+	private final ScheduledFuture<?> metricsFuture;
+	private final AtomicLong updatesForwarded = new AtomicLong();
+	private final AtomicLong updatesSuppressed = new AtomicLong();
+	private final AtomicLong writesFailed = new AtomicLong();
 	final Object futureLock = new Object();
 
 	public BacnetDevice(BacnetConn conn, Node node, RemoteDevice d) {
 		this.conn = conn;
 		this.node = node;
 
-		try {
-			monitor.checkInWriter();
-			this.remoteDevice = d;
-			monitor.checkOutWriter();
-		} catch (InterruptedException ignored) {
-
+		if (d != null) {
+			remoteDevice.set(d);
 		}
 		
 		int defInst = -1;
@@ -132,8 +176,18 @@ public class BacnetDevice {
 		networkNumber = Utils.getAndMaybeSetRoConfigNum(node, "Network Number", defNet).intValue();
 		addressString = Utils.getAndMaybeSetRoConfigString(node, "Address", defAddr);
 		pollingIntervalSeconds = Utils.getAndMaybeSetRoConfigNum(node, "Polling Interval", 5).doubleValue();
+		maxOutstandingRequests = Utils.getAndMaybeSetRoConfigNum(node, "Max Outstanding Requests", 4).intValue();
+		maxRequestRate = Utils.getAndMaybeSetRoConfigNum(node, "Max Requests per Second", 0).doubleValue();
+		adaptivePolling = Utils.getAndMaybeSetRoConfigBool(node, "Adaptive Polling", false);
+		maxPollingIntervalSeconds = Utils.getAndMaybeSetRoConfigNum(node, "Max Polling Interval", 60).doubleValue();
+		updateAdaptivePolling();
 		covConfirmed = Utils.getAndMaybeSetRoConfigBool(node, "Get Confirmed COV Notifications", false);
 		covLifetime = Utils.getAndMaybeSetRoConfigNum(node, "COV Lifetime", 0).longValue();
+		this.metadata = new DeviceMetadataCache(conn.getStpe());
+		this.governor = new RequestGovernor(conn, breaker);
+		governor.setLimits(maxOutstandingRequests, maxRequestRate);
+		this.eventLog = new EventLog(
+				Utils.getAndMaybeSetRoConfigNum(node, "Event Retention", DEFAULT_EVENT_RETENTION).intValue());
 
 		this.statnode = node.createChild(NODE_STATUS, true).setValueType(ValueType.STRING).setValue(new Value(""))
 				.build();
@@ -142,25 +196,38 @@ public class BacnetDevice {
 		this.eventsnode = node.createChild(NODE_EVENTS, true).build();
 		this.eventsnode.setSerializable(false);
 
-		conn.devices.add(this);
+		this.metricsnode = node.createChild(NODE_METRICS, true).build();
+		this.metricsnode.setSerializable(false);
+		this.metricsFuture = conn.getStpe().scheduleAtFixedRate(() -> publishMetrics(), METRICS_PUBLISH_SECONDS,
+				METRICS_PUBLISH_SECONDS, TimeUnit.SECONDS);
+
+		conn.addDevice(this);
 	}
 	
 	private void setLocatingParams() {
-		try {
-			monitor.checkInReader();
-			if (remoteDevice != null) {
-				instanceNumber = remoteDevice.getInstanceNumber();
-				Address address = remoteDevice.getAddress();
-				networkNumber = address.getNetworkNumber().intValue();
-				addressString = Utils.getMacString(address);
-				node.setRoConfig("Instance Number", new Value(instanceNumber));
-				node.setRoConfig("Network Number", new Value(networkNumber));
-				node.setRoConfig("Address", new Value(addressString));
-			}
-			monitor.checkOutReader();
-		} catch (InterruptedException ignored) {
-			
+		RemoteDevice d = remoteDevice.get();
+		if (d != null) {
+			instanceNumber = d.getInstanceNumber();
+			Address address = d.getAddress();
+			networkNumber = address.getNetworkNumber().intValue();
+			addressString = Utils.getMacString(address);
+			node.setRoConfig("Instance Number", new Value(instanceNumber));
+			node.setRoConfig("Network Number", new Value(networkNumber));
+			node.setRoConfig("Address", new Value(addressString));
+		}
+		conn.indexDevice(this);
+	}
+
+	/**
+	 * @return the device's address, from the remote device if it has been found, or else from
+	 *         the configured network number and MAC address
+	 */
+	Address getAddress() {
+		RemoteDevice d = remoteDevice.get();
+		if (d != null) {
+			return d.getAddress();
 		}
+		return Utils.toAddress(networkNumber, addressString);
 	}
 
 	public void restoreLastSession() {
@@ -192,61 +259,145 @@ public class BacnetDevice {
 					BacnetObject bo = new BacnetObject(this, child, oid);
 					bo.restoreLastSession();
 					if (child.getDisplayName() == null) {
-						subscribeProperty(new OneTimeNameProperty(this, bo, oid));
+						synchronized (unnamedObjects) {
+							unnamedObjects.add(bo);
+						}
 					}
 				} else {
 					child.delete(false);
 				}
-			} else if (child.getAction() == null && !child.getName().equals(NODE_STATUS) && !child.getName().equals(NODE_EVENTS)) {
+			} else if (child.getAction() == null && !child.getName().equals(NODE_STATUS) && !child.getName().equals(NODE_EVENTS)
+					&& !child.getName().equals(NODE_METRICS)) {
 				child.delete(false);
 			}
 		}
 	}
 	
-	private void findDevice() {
-		try {
-			monitor.checkInWriter();
-			if (remoteDevice == null) {
-				statnode.setValue(new Value("Connecting"));
-				try {
-					conn.monitor.checkInReader();
-					if (conn.localDevice != null) {
-						if (instanceNumber >= 0) {
-							try {
-								remoteDevice = conn.localDevice.getRemoteDeviceBlocking(instanceNumber);
-							} catch (BACnetException e) {
-								LOGGER.debug("", e);
-								LOGGER.debug("Failed to get device by instance number, trying by address");
-							}
-						} 
-						if (remoteDevice == null) {
-							Address address = Utils.toAddress(networkNumber, addressString);
-							remoteDevice = conn.findRemoteDeviceByAddress(address);
-						}
-						if (remoteDevice == null) {
-							statnode.setValue(new Value("Failed to Connect"));
-						}
-					} else {
-						statnode.setValue(new Value("Connection Down"));
-					}
-					conn.monitor.checkOutReader();
-				} catch (InterruptedException ignored) {
+	/**
+	 * @return whether the device has been found
+	 */
+	boolean findDevice() {
+		boolean found = remoteDevice.computeIfAbsent(() -> locateRemoteDevice()) != null;
+		if (found) {
+			statnode.setValue(new Value("Ready"));
+			node.setRoConfig("Last Connected", new Value(System.currentTimeMillis()));
+			covManager.resubscribeAll();
+			applyMetadata();
+		}
+		setLocatingParams();
+		makeEditAction();
+		return found;
+	}
 
-				}
+	/**
+	 * Called when the circuit breaker opens or closes. While the device isn't responding, its
+	 * points show no value; once it is back, polled points get theirs from the next poll, and COV
+	 * subscriptions are renewed so that the device sends the current values of the others.
+	 */
+	void setResponding(boolean responding) {
+		if (responding) {
+			statnode.setValue(new Value("Ready"));
+			covManager.resubscribeAll();
+			return;
+		}
+		statnode.setValue(new Value("Not Responding"));
+		Set<BacnetProperty> props = new HashSet<>(subscribed.keySet());
+		props.addAll(new ArrayList<>(objects));
+		for (BacnetProperty prop : props) {
+			prop.markUnavailable();
+		}
+	}
+
+	/**
+	 * @return when the device was last found, in milliseconds since the epoch, or 0 if never
+	 */
+	long getLastConnected() {
+		return Utils.safeGetRoConfigNum(node, "Last Connected", 0).longValue();
+	}
+
+	private RemoteDevice locateRemoteDevice() {
+		statnode.setValue(new Value("Connecting"));
+		LocalDevice ld = conn.localDevice.get();
+		if (ld == null) {
+			statnode.setValue(new Value("Connection Down"));
+			return null;
+		}
+		RemoteDevice d = null;
+		if (instanceNumber >= 0) {
+			try {
+				d = ld.getRemoteDeviceBlocking(instanceNumber);
+			} catch (BACnetException e) {
+				LOGGER.debug("", e);
+				LOGGER.debug("Failed to get device by instance number, trying by address");
+			}
+		}
+		if (d == null) {
+			Address address = Utils.toAddress(networkNumber, addressString);
+			d = conn.findRemoteDeviceByAddress(address);
+		}
+		if (d == null) {
+			statnode.setValue(new Value("Failed to Connect"));
+		} else {
+			if (d.getServicesSupported() == null) {
+				fetchDeviceInformation(ld, d);
+			}
+			validateMetadata(ld, d);
+		}
+		return d;
+	}
+
+	/**
+	 * Checks the metadata cache against the device's databaseRevision, which the device changes
+	 * whenever objects are added, removed or renamed.
+	 */
+	private void validateMetadata(LocalDevice ld, RemoteDevice d) {
+		long revision = -1;
+		Encodable enc = governor.readProperty(ld, d, d.getObjectIdentifier(), PropertyIdentifier.databaseRevision,
+				null, RequestGovernor.Priority.BACKGROUND);
+		if (enc instanceof UnsignedInteger) {
+			revision = ((UnsignedInteger) enc).longValue();
+		}
+		if (metadata.validate(d.getInstanceNumber(), revision)) {
+			LOGGER.info("Using cached metadata for device " + d.getInstanceNumber());
+		}
+	}
+
+	/**
+	 * Sets objects up from the metadata cache, and reads what it doesn't have.
+	 */
+	private void applyMetadata() {
+		for (BacnetObject obj : new ArrayList<>(objects)) {
+			if (obj.applyCachedMetadata()) {
+				obj.unsubscribeMetadata();
 			}
-			if (remoteDevice != null) {
-				statnode.setValue(new Value("Ready"));
+		}
+		List<BacnetObject> unnamed;
+		synchronized (unnamedObjects) {
+			unnamed = new ArrayList<>(unnamedObjects);
+			unnamedObjects.clear();
+		}
+		for (BacnetObject obj : unnamed) {
+			if (obj.node.getDisplayName() == null) {
+				subscribeProperty(new OneTimeNameProperty(this, obj, obj.oid));
 			}
-			monitor.checkOutWriter();
-		} catch (InterruptedException ignored) {
+		}
+	}
 
+	/**
+	 * Reads the APDU, segmentation and services supported properties that the request planner
+	 * relies on, for devices that weren't learned about through an I-Am.
+	 */
+	private void fetchDeviceInformation(LocalDevice ld, RemoteDevice d) {
+		try {
+			DiscoveryUtils.getExtendedDeviceInformation(ld, d);
+		} catch (BACnetException e) {
+			LOGGER.debug("", e);
 		}
-		setLocatingParams();
-		makeEditAction();
+		planner.invalidate();
 	}
 
 	public void init() {
-		Objects.getDaemonThreadPool().schedule(() -> findDevice(), 0, TimeUnit.MILLISECONDS);
+		conn.getBringUp().submit(this);
 		
 		makeFolderActions(node);
 		makeStopAction();
@@ -261,11 +412,16 @@ public class BacnetDevice {
 	public void subscribeProperty(BacnetProperty prop) {
 		ObjectPropertyReference opr = new ObjectPropertyReference(prop.oid, prop.pid);
 		subscribed.put(prop, opr);
+		planner.invalidate();
 		startPolling();
 	}
 
 	public boolean unsubscribeProperty(BacnetProperty prop) {
 		boolean wasSubbed = (subscribed.remove(prop) != null);
+		if (wasSubbed) {
+			planner.forget(prop);
+			planner.invalidate();
+		}
 		if (subscribed.isEmpty()) {
 			stopPolling();
 		}
@@ -273,120 +429,102 @@ public class BacnetDevice {
 	}
 
 	public void subscribeObjectCov(BacnetObject obj) {
-		try {
-			monitor.checkInReader();
-			if (remoteDevice != null) {
-				try {
-					conn.monitor.checkInReader();
-					if (conn.localDevice != null) {
-						obj.covId = conn.addCovSub(obj);
-						LOGGER.info("subscribing to cov for device " + node.getName() + ", object " + obj.oid);
-						conn.localDevice.send(remoteDevice,
-								new SubscribeCOVRequest(new UnsignedInteger(obj.covId), obj.oid,
-										Boolean.valueOf(covConfirmed), new UnsignedInteger(covLifetime)));
-					}
-					conn.monitor.checkOutReader();
-				} catch (InterruptedException ignored) {
+		covManager.subscribe(obj);
+	}
 
-				}
-			}
-			monitor.checkOutReader();
-		} catch (InterruptedException ignored) {
+	public void unsubscribeObjectCov(BacnetObject obj) {
+		covManager.unsubscribe(obj);
+	}
 
-		}
+	boolean isCovConfirmed() {
+		return covConfirmed;
 	}
 
-	public void unsubscribeObjectCov(BacnetObject obj) {
-		try {
-			monitor.checkInReader();
-			if (remoteDevice != null) {
-				try {
-					conn.monitor.checkInReader();
-					if (conn.localDevice != null) {
-						conn.removeCovSub(obj.covId);
-						LOGGER.info("unsubscribing from cov for device " + node.getName() + ", object " + obj.oid);
-						conn.localDevice.send(remoteDevice,
-								new SubscribeCOVRequest(new UnsignedInteger(obj.covId), obj.oid, null, null));
-						obj.covId = -1;
-					}
-					conn.monitor.checkOutReader();
-				} catch (InterruptedException ignored) {
+	long getCovLifetime() {
+		return covLifetime;
+	}
 
-				}
-			}
-			monitor.checkOutReader();
-		} catch (InterruptedException ignored) {
+	/**
+	 * Counts a value received for one of this device's nodes, and whether it was passed on or
+	 * dropped as unchanged.
+	 */
+	void countUpdate(boolean forwarded) {
+		if (forwarded) {
+			updatesForwarded.incrementAndGet();
+		} else {
+			updatesSuppressed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Reports a write the device refused or that couldn't be sent, on the metrics node, since the
+	 * write itself has long since returned.
+	 */
+	void writeFailed(BacnetProperty prop, Throwable e) {
+		String message = e.getMessage() != null ? e.getMessage() : e.toString();
+		LOGGER.warn("Write to " + prop.oid + " " + prop.pid + " of device " + instanceNumber + " failed: " + message);
+		writesFailed.incrementAndGet();
+		Utils.setMetric(metricsnode, METRIC_WRITES_FAILED, new Value(writesFailed.get()));
+		Utils.setMetric(metricsnode, METRIC_LAST_WRITE_ERROR, new Value(prop.oid + " " + prop.pid + ": " + message));
+	}
 
+	private void publishMetrics() {
+		Utils.setMetric(metricsnode, METRIC_UPDATES_FORWARDED, new Value(updatesForwarded.get()));
+		Utils.setMetric(metricsnode, METRIC_UPDATES_SUPPRESSED, new Value(updatesSuppressed.get()));
+		Utils.setMetric(metricsnode, METRIC_REQUEST_QUEUE_DEPTH, new Value(governor.getQueueDepth()));
+		Utils.setMetric(metricsnode, METRIC_REQUESTS_OUTSTANDING, new Value(governor.getOutstanding()));
+		for (RequestGovernor.Priority priority : RequestGovernor.Priority.values()) {
+			Utils.setMetric(metricsnode, priority.label + " " + METRIC_REQUEST_WAIT,
+					new Value(governor.takeAverageWait(priority)));
 		}
+		Utils.setMetric(metricsnode, METRIC_BREAKER_STATE, new Value(breaker.getState().label));
+		Utils.setMetric(metricsnode, METRIC_BREAKER_TRANSITIONS, new Value(breaker.getTransitions()));
+		Utils.setMetric(metricsnode, METRIC_REQUESTS_SKIPPED, new Value(breaker.getSkipped()));
+		Utils.setMetric(metricsnode, METRIC_WRITES_FAILED, new Value(writesFailed.get()));
+	}
+
+	private void updateAdaptivePolling() {
+		int maxTier = (int) Math.max(1, Math.floor(maxPollingIntervalSeconds / pollingIntervalSeconds));
+		planner.setAdaptive(adaptivePolling, maxTier);
 	}
 
 	private void startPolling() {
 		synchronized (futureLock) {
-			if (pollingFuture != null) {
+			if (pollingTask != null) {
 				return;
 			}
 			long interval = (long) (pollingIntervalSeconds * 1000);
-			pollingFuture = conn.getStpe().scheduleWithFixedDelay(() -> readProperties(), 0, interval, TimeUnit.MILLISECONDS);
+			pollingTask = conn.getPollingScheduler().schedule(instanceNumber, interval, () -> readProperties(),
+					lag -> Utils.setMetric(metricsnode, METRIC_POLL_LAG, new Value(lag)));
 		}
 	}
 
 	private void stopPolling() {
 		synchronized (futureLock) {
-			if (pollingFuture != null) {
-				pollingFuture.cancel(false);
-				pollingFuture = null;
+			if (pollingTask != null) {
+				pollingTask.cancel();
+				pollingTask = null;
 			}
 		}
 	}
 
 	private void readProperties() {
-		List<ObjectPropertyReference> oprs = new ArrayList<>(subscribed.size());
-		List<BacnetProperty> props = new ArrayList<>(subscribed.size());
-		for (Entry<BacnetProperty, ObjectPropertyReference> entry : new HashMap<>(subscribed).entrySet()) {
-			oprs.add(entry.getValue());
-			props.add(entry.getKey());
-		}
-		List<Pair<ObjectPropertyReference, Encodable>> results = null;
-		try {
-			monitor.checkInReader();
-			if (remoteDevice != null) {
-				try {
-					conn.monitor.checkInReader();
-					if (conn.localDevice != null) {
-						try {
-							// LOGGER.info("Sending Read Properties Request to
-							// Device: " + node.getName());
-							results = RequestUtils.readProperties(conn.localDevice, remoteDevice, oprs, true, null);
-							// if (results != null) LOGGER.info("Recieved Read
-							// Properties Response from Device: " +
-							// node.getName());
-						} catch (BACnetException e) {
-							LOGGER.debug("", e);
-						}
-					}
-					conn.monitor.checkOutReader();
-				} catch (InterruptedException ignored) {
-
-				}
-			}
-			monitor.checkOutReader();
-		} catch (InterruptedException ignored) {
-
-		}
-		if (results == null) {
+		LifecycleGuard.Lease<RemoteDevice> d = remoteDevice.lease();
+		LifecycleGuard.Lease<LocalDevice> ld = conn.localDevice.lease();
+		if (d.get() == null || ld.get() == null) {
 			return;
 		}
-		if (results.size() != props.size()) {
-			LOGGER.error("Number of results doesn't match number of requests");
+		if (activeCycle != null && !activeCycle.isDone()) {
+			LOGGER.debug("Previous poll of device " + node.getName() + " still in progress, skipping");
 			return;
 		}
-		for (int i = 0; i < results.size(); i++) {
-			Pair<ObjectPropertyReference, Encodable> result = results.get(i);
-			// ObjectPropertyReference opr = result.getLeft();
-			Encodable val = result.getRight();
-			BacnetProperty prop = props.get(i);
-			prop.updateValue(val);
+		if (!breaker.isClosed()) {
+			breaker.countSkipped();
+			return;
 		}
+		activeCycle = new PollCycle(planner, governor, RequestGovernor.Priority.POLL, ld, d,
+				planner.getBatches(d.get(), subscribed, pollCycleCount++), maxOutstandingRequests);
+		activeCycle.start();
 	}
 
 	/////////////////////////////////////////////////////////////////////////////////////////
@@ -397,6 +535,7 @@ public class BacnetDevice {
 		makeRemoveAction(fnode);
 		makeAddFolderAction(fnode);
 		makeDiscoverObjectsAction(fnode);
+		makeBulkDiscoverObjectsAction(fnode);
 		makeAddObjectAction(fnode);
 		makeExportAction(fnode);
 		makeImportAction(fnode);
@@ -415,8 +554,14 @@ public class BacnetDevice {
 	private void remove(Node fnode) {
 		if (node.equals(fnode)) {
 			stop();
+			covManager.stop();
+			metricsFuture.cancel(false);
+			metadata.delete();
+			for (BacnetObject obj : new ArrayList<>(objects)) {
+				obj.stopHistory(true);
+			}
 		}
-		conn.devices.remove(this);
+		conn.removeDevice(this);
 		fnode.delete(false);
 	}
 
@@ -447,6 +592,23 @@ public class BacnetDevice {
 		}
 	}
 
+	private void makeBulkDiscoverObjectsAction(final Node fnode) {
+		Action act = new Action(Permission.READ, event -> new BulkDiscovery(this, fnode).run(event));
+		act.addResult(new Parameter("Status", ValueType.STRING));
+		act.addResult(new Parameter("Objects", ValueType.NUMBER));
+		act.addResult(new Parameter("Properties Read", ValueType.NUMBER));
+		act.addResult(new Parameter("Properties Total", ValueType.NUMBER));
+		act.addResult(new Parameter("Elapsed (s)", ValueType.NUMBER));
+		act.addResult(new Parameter("Properties/s", ValueType.NUMBER));
+		act.setResultType(ResultType.STREAM);
+		Node anode = fnode.getChild(ACTION_BULK_DISCOVER_OBJECTS, true);
+		if (anode == null) {
+			fnode.createChild(ACTION_BULK_DISCOVER_OBJECTS, true).setAction(act).build().setSerializable(false);
+		} else {
+			anode.setAction(act);
+		}
+	}
+
 	private void makeAddObjectAction(final Node fnode) {
 		Action act = new Action(Permission.READ, event -> addObject(fnode, event));
 		act.addParameter(new Parameter("Object Type", ValueType.makeEnum(Utils.getObjectTypeList())));
@@ -463,53 +625,88 @@ public class BacnetDevice {
 	}
 
 	private void discoverObjects(Node fnode) {
-		SequenceOf<ObjectIdentifier> oids = null;
-		try {
-			monitor.checkInReader();
-			if (remoteDevice != null) {
-				try {
-					conn.monitor.checkInReader();
-					if (conn.localDevice != null) {
-						try {
-							LOGGER.info("Sending Object List Request for Device: " + node.getName());
-							oids = RequestUtils.getObjectList(conn.localDevice, remoteDevice);
-							if (oids != null)
-								LOGGER.info("Recieved Object List Response from Device " + node.getName());
-						} catch (BACnetException e) {
-							LOGGER.debug("", e);
-						}
-					}
-					conn.monitor.checkOutReader();
-				} catch (InterruptedException ignored) {
+		SequenceOf<ObjectIdentifier> oids = readObjectList();
+		if (oids == null) {
+			return;
+		}
+		for (ObjectIdentifier oid : oids) {
+			if (fnode.getChild(oid.toString(), true) == null) {
+				addObjectNode(fnode, oid, Collections.emptyMap());
+			}
+		}
+	}
 
-				}
+	SequenceOf<ObjectIdentifier> readObjectList() {
+		SequenceOf<ObjectIdentifier> oids = metadata.getObjectList();
+		if (oids != null) {
+			return oids;
+		}
+		RemoteDevice d = remoteDevice.get();
+		LocalDevice ld = conn.localDevice.get();
+		if (d != null && ld != null) {
+			try {
+				LOGGER.info("Sending Object List Request for Device: " + node.getName());
+				oids = RequestUtils.getObjectList(ld, d);
+				if (oids != null)
+					LOGGER.info("Recieved Object List Response from Device " + node.getName());
+			} catch (BACnetException e) {
+				LOGGER.debug("", e);
 			}
-			monitor.checkOutReader();
-		} catch (InterruptedException ignored) {
+		}
+		metadata.putObjectList(oids);
+		return oids;
+	}
 
+	/**
+	 * Creates the node of a discovered object.
+	 *
+	 * @param known property values already read from the device, for setting up the object without
+	 *            polling for them
+	 */
+	BacnetObject addObjectNode(Node fnode, ObjectIdentifier oid, Map<PropertyIdentifier, Encodable> known) {
+		NodeBuilder b = fnode.createChild(oid.toString(), true)
+							 .setRoConfig("restoreAs", new Value("object"))
+							 .setRoConfig("Object Type",
+										  new Value(oid.getObjectType().toString()))
+							 .setRoConfig("Instance Number",
+										  new Value(oid.getInstanceNumber()))
+							 .setRoConfig("Use COV", new Value(false))
+							 .setRoConfig("Enable Headless Polling", new Value(false))
+							 .setRoConfig("Write Priority", new Value(16))
+							 .setValueType(ValueType.STRING).setValue(new Value(""));
+		Encodable name = known.get(PropertyIdentifier.objectName);
+		if (name != null) {
+			b.setDisplayName(name.toString());
 		}
-		if (oids == null) {
-			return;
+		Encodable units = known.get(PropertyIdentifier.units);
+		if (units != null) {
+			b.setRoConfig("Units", new Value(units.toString()));
 		}
-		for (ObjectIdentifier oid : oids) {
-			String name = oid.toString();
-			if (fnode.getChild(name, true) == null) {
-				NodeBuilder b = fnode.createChild(name, true)
-									 .setRoConfig("restoreAs", new Value("object"))
-									 .setRoConfig("Object Type",
-												  new Value(oid.getObjectType().toString()))
-									 .setRoConfig("Instance Number",
-												  new Value(oid.getInstanceNumber()))
-									 .setRoConfig("Use COV", new Value(false))
-									 .setRoConfig("Enable Headless Polling", new Value(false))
-									 .setRoConfig("Write Priority", new Value(16))
-									 .setValueType(ValueType.STRING).setValue(new Value(""));
-				BacnetObject bo = new BacnetObject(this, b.getChild(), oid);
-				bo.init();
-				b.build();
-				subscribeProperty(new OneTimeNameProperty(this, bo, oid));
+		Encodable description = known.get(PropertyIdentifier.description);
+		if (description != null && !description.toString().isEmpty()) {
+			b.setRoConfig("Description", new Value(description.toString()));
+		}
+		for (Entry<PropertyIdentifier, Encodable> entry : known.entrySet()) {
+			metadata.put(oid, entry.getKey(), entry.getValue());
+		}
+		BacnetObject bo = new BacnetObject(this, b.getChild(), oid);
+		for (PropertyIdentifier pid : new PropertyIdentifier[] { PropertyIdentifier.stateText,
+				PropertyIdentifier.activeText, PropertyIdentifier.inactiveText, PropertyIdentifier.actionText }) {
+			Encodable value = known.get(pid);
+			if (value != null) {
+				bo.updateProperty(value, pid);
 			}
 		}
+		bo.init();
+		b.build();
+		if (name == null) {
+			subscribeProperty(new OneTimeNameProperty(this, bo, oid));
+		}
+		return bo;
+	}
+
+	int getMaxOutstandingRequests() {
+		return maxOutstandingRequests;
 	}
 
 	private void addObject(Node fnode, ActionResult event) {
@@ -570,8 +767,17 @@ public class BacnetDevice {
 		act.addParameter(new Parameter("Network Number", ValueType.NUMBER, new Value(networkNumber)));
 		act.addParameter(new Parameter("Address", ValueType.STRING, new Value(addressString)));
 		act.addParameter(new Parameter("Polling Interval", ValueType.NUMBER, new Value(pollingIntervalSeconds)));
+		act.addParameter(new Parameter("Max Outstanding Requests", ValueType.NUMBER, new Value(maxOutstandingRequests))
+				.setDescription("Number of requests that may await a response at once, up to " + PollCycle.MAX_OUTSTANDING));
+		act.addParameter(new Parameter("Max Requests per Second", ValueType.NUMBER, new Value(maxRequestRate))
+				.setDescription("Rate at which requests are sent to the device, or 0 for no limit"));
+		act.addParameter(new Parameter("Adaptive Polling", ValueType.BOOL, new Value(adaptivePolling))
+				.setDescription("Poll properties that rarely change less often, down to once per Max Polling Interval"));
+		act.addParameter(new Parameter("Max Polling Interval", ValueType.NUMBER, new Value(maxPollingIntervalSeconds)));
 		act.addParameter(new Parameter("Get Confirmed COV Notifications", ValueType.BOOL, new Value(covConfirmed)));
 		act.addParameter(new Parameter("COV Lifetime", ValueType.NUMBER, new Value(covLifetime)));
+		act.addParameter(new Parameter("Event Retention", ValueType.NUMBER, new Value(eventLog.getCapacity()))
+				.setDescription("Number of recent event notifications kept for " + ACTION_GET_RECENT_EVENTS));
 		Node anode = node.getChild(ACTION_EDIT, true);
 		if (anode == null) {
 			node.createChild(ACTION_EDIT, true).setAction(act).build().setSerializable(false);
@@ -590,8 +796,17 @@ public class BacnetDevice {
 		addressString = Utils.getAndMaybeSetRoConfigString(node, "Address", "");
 		pollingIntervalSeconds = Utils.safeGetRoConfigNum(node, "Polling Interval", pollingIntervalSeconds)
 				.doubleValue();
+		maxOutstandingRequests = Utils.safeGetRoConfigNum(node, "Max Outstanding Requests", maxOutstandingRequests)
+				.intValue();
+		maxRequestRate = Utils.safeGetRoConfigNum(node, "Max Requests per Second", maxRequestRate).doubleValue();
+		governor.setLimits(maxOutstandingRequests, maxRequestRate);
+		adaptivePolling = Utils.safeGetRoConfigBool(node, "Adaptive Polling", adaptivePolling);
+		maxPollingIntervalSeconds = Utils.safeGetRoConfigNum(node, "Max Polling Interval", maxPollingIntervalSeconds)
+				.doubleValue();
+		updateAdaptivePolling();
 		covConfirmed = Utils.safeGetRoConfigBool(node, "Get Confirmed COV Notifications", covConfirmed);
 		covLifetime = Utils.safeGetRoConfigNum(node, "COV Lifetime", covLifetime).longValue();
+		eventLog.setCapacity(Utils.safeGetRoConfigNum(node, "Event Retention", eventLog.getCapacity()).intValue());
 
 		restart();
 	}
@@ -602,14 +817,12 @@ public class BacnetDevice {
 	}
 
 	private void stop() {
-		try {
-			monitor.checkInWriter();
-			remoteDevice = null;
-			statnode.setValue(new Value("Stopped"));
-			monitor.checkOutWriter();
-		} catch (InterruptedException ignored) {
-
-		}
+		conn.getBringUp().cancel(this);
+		remoteDevice.clear();
+		writeQueue.clear();
+		governor.clear();
+		breaker.reset();
+		statnode.setValue(new Value("Stopped"));
 	}
 	
 	private void makeExportAction(final Node fnode) {
@@ -668,6 +881,7 @@ public class BacnetDevice {
 	
 	private void makeEventsNodeActions() {
 		makeGetEventInfoAction();
+		makeGetRecentEventsAction();
 		makeAcknowledgeAction();
 		makeClearEventsAction();
 	}
@@ -700,7 +914,7 @@ public class BacnetDevice {
 		while (moreEvents) {
 			moreEvents = false;
 			GetEventInformationRequest request = new GetEventInformationRequest(lastRecieved);
-			ServiceFuture sf = Utils.sendConfirmedRequest(conn, this, request);
+			ServiceFuture sf = Utils.sendConfirmedRequest(conn, this, request, RequestGovernor.Priority.INTERACTIVE);
 			try {
 				GetEventInformationAck ack = sf.get();
 				for (EventSummary es : ack.getListOfEventSummaries()) {
@@ -739,6 +953,40 @@ public class BacnetDevice {
 		}
 	}
 	
+	private void makeGetRecentEventsAction() {
+		Action act = new Action(Permission.READ, event -> getRecentEvents(event));
+		act.addParameter(new Parameter("Offset", ValueType.NUMBER, new Value(0))
+				.setDescription("Number of most recent events to skip"));
+		act.addParameter(new Parameter("Limit", ValueType.NUMBER, new Value(100)));
+		act.addResult(new Parameter("Sequence Number", ValueType.NUMBER));
+		for (String field : EVENT_FIELDS) {
+			act.addResult(new Parameter(field, ValueType.DYNAMIC));
+		}
+		act.setResultType(ResultType.TABLE);
+		eventsnode.createChild(ACTION_GET_RECENT_EVENTS, true).setAction(act).build().setSerializable(false);
+	}
+	
+	private void getRecentEvents(ActionResult event) {
+		int offset = event.getParameter("Offset", new Value(0)).getNumber().intValue();
+		int limit = event.getParameter("Limit", new Value(100)).getNumber().intValue();
+		Table table = event.getTable();
+		for (EventLog.Entry entry : eventLog.page(offset, limit)) {
+			Row row = new Row();
+			row.addValue(new Value(entry.sequenceNumber));
+			for (String field : EVENT_FIELDS) {
+				Object o = entry.event.get(field);
+				if (o instanceof Number) {
+					row.addValue(new Value((Number) o));
+				} else if (o instanceof java.lang.Boolean) {
+					row.addValue(new Value((java.lang.Boolean) o));
+				} else {
+					row.addValue(new Value(o != null ? o.toString() : null));
+				}
+			}
+			table.addRow(row);
+		}
+	}
+	
 	private void makeAcknowledgeAction() {
 		Action act = new Action(Permission.READ, event -> acknowledge(event));
 		act.addParameter(new Parameter("Acknowledging Process Identifier", ValueType.NUMBER));
@@ -779,7 +1027,7 @@ public class BacnetDevice {
 		CharacterString acknowledgmentSource = new CharacterString(event.getParameter("Acknowledgement Source", new Value("")).getString());
 		TimeStamp timeOfAcknowledgment = new TimeStamp(new DateTime(new Date().getTime()));
 		AcknowledgeAlarmRequest request =  new AcknowledgeAlarmRequest(acknowledgingProcessIdentifier, eventObjectIdentifier, eventStateAcknowledged , timeStamp, acknowledgmentSource, timeOfAcknowledgment);
-		Utils.sendConfirmedRequest(conn, this, request);
+		Utils.sendConfirmedRequest(conn, this, request, RequestGovernor.Priority.COMMAND);
 	}
 	
 	private void makeClearEventsAction() {
@@ -788,7 +1036,9 @@ public class BacnetDevice {
 	}
 	
 	private void clearEvents() {
+		eventLog.clear();
 		synchronized (eventsnode) {
+			alarmNodes.clear();
 			if (eventsnode.getChildren() == null) {
 				return;
 			}
@@ -797,7 +1047,13 @@ public class BacnetDevice {
 					child.delete(false);
 				}
 			}
-			eventCount = 0;
+		}
+	}
+	
+	private void removeAlarmNode(Node enode) {
+		synchronized (eventsnode) {
+			alarmNodes.values().remove(enode);
+			enode.delete(false);
 		}
 	}
 	
@@ -826,6 +1082,7 @@ public class BacnetDevice {
 		event.getParameters().put("Event State Acknowledged", jo.get("To State"));
 		event.getParameters().put("Timestamp", jo.get("Timestamp"));
 		acknowledge(event);
+		removeAlarmNode(enode);
 	}
 	
 	private void makeDismissAction(final Node enode) {
@@ -834,7 +1091,7 @@ public class BacnetDevice {
 	}
 	
 	private void dismissEvent(Node enode) {
-		node.delete(false);
+		removeAlarmNode(enode);
 	}
 	
 	
@@ -868,11 +1125,35 @@ public class BacnetDevice {
 		if (eventValues != null) {
 			jo.put("Event State", eventValues.toString());
 		}
-		Value val = new Value(jo);
-		Node enode;
+		long seq = eventLog.add(jo);
+		
+		// Each object's latest transition awaiting acknowledgement gets a node, which stays until
+		// that transition is acknowledged or a newer one awaiting acknowledgement replaces it
+		String oid = eventObjectIdentifier.toString();
+		Node enode = null;
 		synchronized (eventsnode) {
-			eventCount += 1;
-			enode = eventsnode.createChild(Integer.toString(eventCount), true).setValueType(ValueType.MAP).setValue(val).build();
+			Node old = alarmNodes.get(oid);
+			if (NotifyType.ackNotification.equals(notifyType)) {
+				// Acknowledged elsewhere, which only settles the node if it's for the same transition
+				if (old != null && toState.toString().equals(old.getValue().getMap().get("To State"))) {
+					alarmNodes.remove(oid);
+					old.delete(false);
+				}
+			} else if (ackRequired != null && ackRequired.booleanValue()) {
+				if (old != null) {
+					alarmNodes.remove(oid);
+					old.delete(false);
+				}
+				if (alarmNodes.size() >= MAX_ALARM_NODES) {
+					Iterator<Node> it = alarmNodes.values().iterator();
+					Node eldest = it.next();
+					it.remove();
+					eldest.delete(false);
+				}
+				enode = eventsnode.createChild(Long.toString(seq), true).setValueType(ValueType.MAP)
+						.setValue(new Value(jo)).build();
+				alarmNodes.put(oid, enode);
+			}
 		}
 		if (enode != null) {
 			makeEventActions(enode);
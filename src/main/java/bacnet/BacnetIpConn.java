@@ -213,6 +213,7 @@ public class BacnetIpConn extends BacnetConn {
 		act.addParameter(new Parameter("Segment Timeout", ValueType.NUMBER, new Value(segmentTimeout)));
 		act.addParameter(new Parameter("Segment Window", ValueType.NUMBER, new Value(segmentWindow)));
 		act.addParameter(new Parameter("Retries", ValueType.NUMBER, new Value(retries)));
+		act.addParameter(new Parameter("Polling Threads", ValueType.NUMBER, new Value(pollingThreads)));
 		act.addParameter(new Parameter("Local Device ID", ValueType.NUMBER, new Value(localDeviceId)));
 		act.addParameter(new Parameter("Local Device Name", ValueType.STRING, new Value(localDeviceName)));
 		act.addParameter(new Parameter("Local Device Vendor", ValueType.STRING, new Value(localDeviceVendor)));
@@ -89,6 +89,7 @@ public class BacnetLink {
 		act.addParameter(new Parameter("Segment Timeout", ValueType.NUMBER, new Value(5000)));
 		act.addParameter(new Parameter("Segment Window", ValueType.NUMBER, new Value(5)));
 		act.addParameter(new Parameter("Retries", ValueType.NUMBER, new Value(2)));
+		act.addParameter(new Parameter("Polling Threads", ValueType.NUMBER, new Value(BacnetConn.DEFAULT_POLLING_THREADS)));
 		act.addParameter(new Parameter("Local Device ID", ValueType.NUMBER, new Value(1212)));
 		act.addParameter(new Parameter("Local Device Name", ValueType.STRING, new Value("DSLink")));
 		act.addParameter(new Parameter("Local Device Vendor", ValueType.STRING, new Value("DGLogik Inc.")));
@@ -122,6 +123,7 @@ public class BacnetLink {
 		act.addParameter(new Parameter("Segment Timeout", ValueType.NUMBER, new Value(5000)));
 		act.addParameter(new Parameter("Segment Window", ValueType.NUMBER, new Value(5)));
 		act.addParameter(new Parameter("Retries", ValueType.NUMBER, new Value(2)));
+		act.addParameter(new Parameter("Polling Threads", ValueType.NUMBER, new Value(BacnetConn.DEFAULT_POLLING_THREADS)));
 		act.addParameter(new Parameter("Local Device ID", ValueType.NUMBER, new Value(1212)));
 		act.addParameter(new Parameter("Local Device Name", ValueType.STRING, new Value("DSLink")));
 		act.addParameter(new Parameter("Local Device Vendor", ValueType.STRING, new Value("DGLogik Inc.")));
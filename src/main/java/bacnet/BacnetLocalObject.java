@@ -1,5 +1,6 @@
 package bacnet;
 
+import com.serotonin.bacnet4j.LocalDevice;
 import com.serotonin.bacnet4j.exception.BACnetServiceException;
 import com.serotonin.bacnet4j.obj.BACnetObject;
 import com.serotonin.bacnet4j.obj.BACnetObjectListener;
@@ -29,8 +30,7 @@ public class BacnetLocalObject implements BACnetObjectListener {
 	final BacnetLocalDevice device;
 	final Node node;
 	final ObjectIdentifier oid;
-	BACnetObject obj;
-	final ReadWriteMonitor monitor = new ReadWriteMonitor();
+	final LifecycleGuard<BACnetObject> obj = new LifecycleGuard<>();
 	
 	final Map<PropertyIdentifier, BacnetLocalProperty> properties = new HashMap<>();
 	
@@ -59,30 +59,36 @@ public class BacnetLocalObject implements BACnetObjectListener {
 	}
 	
 	void init() {
-		try {
-			monitor.checkInWriter();
-			initObj();
-			monitor.checkOutWriter();
-		} catch (InterruptedException ignored) {
-		}
+		obj.computeIfAbsent(() -> createObj(), dropped -> {
+			// Another thread's object won, so take this one back off the local device, and put the
+			// winner on if this one got there first and kept it off
+			LocalDevice ld = dropped.getLocalDevice();
+			if (ld.getObject(oid) == dropped) {
+				try {
+					ld.removeObject(oid);
+					BACnetObject winner = obj.get();
+					if (winner != null && winner.getLocalDevice() == ld) {
+						ld.addObject(winner);
+					}
+				} catch (BACnetServiceException e) {
+					LOGGER.debug("", e);
+				}
+			}
+		});
 		
 		
 		makeRemoveAction();
 		
-		try {
-			monitor.checkInReader();
-			if (obj != null) {
-				try {
-					SequenceOf<PropertyIdentifier> props = obj.readProperty(PropertyIdentifier.propertyList);
-					for (PropertyIdentifier prop: props) {
-						addProperty(prop);
-					}
-				} catch (BACnetServiceException | ClassCastException e) {
-					LOGGER.debug("", e);
+		BACnetObject o = obj.get();
+		if (o != null) {
+			try {
+				SequenceOf<PropertyIdentifier> props = o.readProperty(PropertyIdentifier.propertyList);
+				for (PropertyIdentifier prop: props) {
+					addProperty(prop);
 				}
+			} catch (BACnetServiceException | ClassCastException e) {
+				LOGGER.debug("", e);
 			}
-			monitor.checkOutReader();
-		} catch (InterruptedException ignored) {
 		}
 		
 		for (ObjectPropertyTypeDefinition defn: ObjectProperties.getRequiredObjectPropertyTypeDefinitions(oid.getObjectType())) {
@@ -110,32 +116,23 @@ public class BacnetLocalObject implements BACnetObjectListener {
 		blp.init();
 	}
 	
-	private void initObj() {
+	private BACnetObject createObj() {
+		LocalDevice ld = device.conn.localDevice.get();
+		if (ld == null) {
+			return null;
+		}
+		BACnetObject o = new BACnetObject(ld, oid, node.getName());
+		o.addListener(this);
 		try {
-			device.conn.monitor.checkInReader();
-			if (device.conn.localDevice != null) {
-				obj = new BACnetObject(device.conn.localDevice, oid, node.getName());
-				obj.addListener(this);
-				try {
-					device.conn.localDevice.addObject(obj);
-				} catch (BACnetServiceException e) {
-					LOGGER.warn("", e);
-				}
-			}
-			device.conn.monitor.checkOutReader();
-		} catch (InterruptedException ignored) {
-			
+			ld.addObject(o);
+		} catch (BACnetServiceException e) {
+			LOGGER.warn("", e);
 		}
+		return o;
 	}
 	
 	public void onLocalDeviceChanged() {
-		try {
-			monitor.checkInWriter();
-			obj = null;
-			initObj();
-			monitor.checkOutWriter();
-		} catch (InterruptedException ignored) {
-		}
+		obj.set(createObj());
 	}
 	
 	private void makeRemoveAction() {
@@ -149,18 +146,13 @@ public class BacnetLocalObject implements BACnetObjectListener {
 	}
 
 	private void remove() {
-		try {
-			device.conn.monitor.checkInReader();
-			if (device.conn.localDevice != null) {
-				try {
-					device.conn.localDevice.removeObject(oid);
-				} catch (BACnetServiceException e) {
-					LOGGER.debug("", e);
-				}
+		LocalDevice ld = device.conn.localDevice.get();
+		if (ld != null) {
+			try {
+				ld.removeObject(oid);
+			} catch (BACnetServiceException e) {
+				LOGGER.debug("", e);
 			}
-			device.conn.monitor.checkOutReader();
-		} catch (InterruptedException ignored) {
-			
 		}
 		node.delete(false);
 	}
@@ -3,6 +3,7 @@ package bacnet;
 import com.serotonin.bacnet4j.enums.DayOfWeek;
 import com.serotonin.bacnet4j.enums.Month;
 import com.serotonin.bacnet4j.exception.BACnetServiceException;
+import com.serotonin.bacnet4j.obj.BACnetObject;
 import com.serotonin.bacnet4j.obj.ObjectProperties;
 import com.serotonin.bacnet4j.obj.PropertyTypeDefinition;
 import com.serotonin.bacnet4j.type.Encodable;
@@ -55,13 +56,12 @@ public class BacnetLocalProperty {
 		if (node.getValue() != null) {
 			set(node.getValue());
 		}
+		BACnetObject obj = object.obj.get();
 		try {
-			object.monitor.checkInReader();
-			if (object.obj != null) {
-				update(object.obj.readProperty(pid));
+			if (obj != null) {
+				update(obj.readProperty(pid));
 			}
-			object.monitor.checkOutReader();
-		} catch (BACnetServiceException | InterruptedException e) {
+		} catch (BACnetServiceException e) {
 			LOGGER.debug("", e);
 		}
 		
@@ -87,9 +87,9 @@ public class BacnetLocalProperty {
 	}
 	
 	private void set(Value value) {
+		BACnetObject obj = object.obj.get();
 		try {
-			object.monitor.checkInReader();
-			if (object.obj != null) {
+			if (obj != null) {
 				PropertyTypeDefinition ptd = ObjectProperties.getObjectPropertyTypeDefinition(object.oid.getObjectType(), pid).getPropertyTypeDefinition();
 				Class<? extends Encodable> clazz = ptd.getClazz();
 				ValueSource valueSource = new ValueSource();
@@ -98,11 +98,10 @@ public class BacnetLocalProperty {
 				if (enc == null) {
 					enc = Null.instance;
 				}
-				object.obj.writeProperty(valueSource , pid, enc);
+				obj.writeProperty(valueSource , pid, enc);
 					
 			}
-			object.monitor.checkOutReader();
-		} catch (BACnetServiceException | InterruptedException e) {
+		} catch (BACnetServiceException e) {
 			LOGGER.debug("", e);
 		}
 	}
@@ -1,12 +1,5 @@
 package bacnet;
 
-import com.serotonin.bacnet4j.ServiceFuture;
-import com.serotonin.bacnet4j.exception.BACnetException;
-import com.serotonin.bacnet4j.service.acknowledgement.ReadRangeAck;
-import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest;
-import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.BySequenceNumber;
-import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.ByTime;
-import com.serotonin.bacnet4j.service.confirmed.WritePropertyRequest;
 import com.serotonin.bacnet4j.type.Encodable;
 import com.serotonin.bacnet4j.type.constructed.DateTime;
 import com.serotonin.bacnet4j.type.constructed.EventLogRecord;
@@ -23,6 +16,8 @@ import com.serotonin.bacnet4j.type.primitive.CharacterString;
 import com.serotonin.bacnet4j.type.primitive.Enumerated;
 import com.serotonin.bacnet4j.type.primitive.Null;
 import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.Real;
+import com.serotonin.bacnet4j.type.primitive.SignedInteger;
 import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
 import org.apache.commons.lang3.tuple.Pair;
 import org.dsa.iot.dslink.node.Node;
@@ -32,6 +27,7 @@ import org.dsa.iot.dslink.node.actions.ActionResult;
 import org.dsa.iot.dslink.node.actions.Parameter;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.handler.CompleteHandler;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.dsa.iot.historian.database.Database;
@@ -42,9 +38,14 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 
 public class BacnetObject extends BacnetProperty {
@@ -56,17 +57,33 @@ public class BacnetObject extends BacnetProperty {
     static final String ACTION_WRITE = "write@priority";
     static final String ACTION_RELINQUISH = "relinquish";
 
+    static final String DEADBAND_ABSOLUTE = "Absolute";
+    static final String DEADBAND_PERCENT = "Percent";
+
     private DataType dataType = null;
     boolean useCov;
     boolean headlessPolling;
     int writePriority;
+    double deadband;
+    boolean deadbandPercent;
 
     final Set<BacnetProperty> properties = new HashSet<>();
+    private volatile Map<PropertyIdentifier, BacnetProperty[]> covIndex = Collections.emptyMap();
     private int covSubCount = 0;
     long covId = -1;
     final Object lock = new Object();
 
-    private List<String> stateText = new ArrayList<>(2);
+    // Replaced rather than changed, since it's read by poll threads while the texts are updated
+    private volatile List<String> stateText = Collections.emptyList();
+    private final Object stateTextLock = new Object();
+    // Value type built from stateText, dropped whenever the state text changes
+    private volatile ValueType stateType = null;
+    // Decoder for the class of present value last seen, for objects of type OTHER
+    private volatile Decoder decoder = null;
+    // Value type last given to the node, so that it's only sent again when it changes
+    private volatile ValueType sentType = null;
+    // Local copy of the log's records, for trend and event logs
+    private volatile TrendLogMirror mirror = null;
 
     //private BacnetProperty hiddenNameProp;
     private final BacnetProperty hiddenStateTextProp;
@@ -81,6 +98,9 @@ public class BacnetObject extends BacnetProperty {
         useCov = Utils.getAndMaybeSetRoConfigBool(node, "Use COV", false);
         headlessPolling = Utils.getAndMaybeSetRoConfigBool(node, "Enable Headless Polling", false);
         writePriority = Utils.getAndMaybeSetRoConfigNum(node, "Write Priority", 16).intValue();
+        deadband = Utils.getAndMaybeSetRoConfigNum(node, "Deadband", 0).doubleValue();
+        deadbandPercent = DEADBAND_PERCENT.equals(
+                Utils.getAndMaybeSetRoConfigString(node, "Deadband Type", DEADBAND_ABSOLUTE));
         //this.hiddenNameProp = new HiddenProperty(device, this, oid, PropertyIdentifier.objectName);
         this.hiddenStateTextProp = new HiddenProperty(device, this, oid,
                 PropertyIdentifier.stateText);
@@ -92,8 +112,7 @@ public class BacnetObject extends BacnetProperty {
                 PropertyIdentifier.actionText);
         if (Utils.isOneOf(oid.getObjectType(), ObjectType.binaryInput, ObjectType.binaryOutput,
                 ObjectType.binaryValue)) {
-            stateText.add("inactive");
-            stateText.add("active");
+            stateText = Collections.unmodifiableList(Arrays.asList("inactive", "active"));
         }
     }
 
@@ -151,14 +170,37 @@ public class BacnetObject extends BacnetProperty {
 
     @SuppressWarnings("unchecked")
     private SequenceOf<PropertyIdentifier> getPropertyList() {
-        return (SequenceOf<PropertyIdentifier>) Utils
-                .readProperty(device.conn, device, oid, PropertyIdentifier.propertyList, null);
+        SequenceOf<PropertyIdentifier> proplist = device.metadata.getPropertyList(oid);
+        if (proplist == null) {
+            proplist = (SequenceOf<PropertyIdentifier>) Utils
+                    .readProperty(device.conn, device, oid, PropertyIdentifier.propertyList, null,
+                            RequestGovernor.Priority.BACKGROUND);
+            device.metadata.put(oid, PropertyIdentifier.propertyList, proplist);
+        }
+        return proplist;
     }
 
     private void initHistory() {
         if (Utils.isOneOf(oid.getObjectType(), ObjectType.trendLog, ObjectType.trendLogMultiple,
                 ObjectType.eventLog)) {
-            GetHistory.initAction(node, new Db());
+            Db db = new Db();
+            if (mirror == null && device.instanceNumber >= 0) {
+                // Starts mirroring once the log's history is first asked for
+                mirror = new TrendLogMirror(device, oid, db);
+            }
+            GetHistory.initAction(node, db);
+        }
+    }
+
+    /**
+     * Stops mirroring the log's records, if it's a log.
+     *
+     * @param delete whether to delete the records mirrored so far
+     */
+    void stopHistory(boolean delete) {
+        if (mirror != null) {
+            mirror.stop(delete);
+            mirror = null;
         }
     }
 
@@ -253,23 +295,16 @@ public class BacnetObject extends BacnetProperty {
             return;
         }
         //LOGGER.debug("Sending write request : (" + oid.toString() + ", " + pid.toString() + ", null, " + enc.toString() + ", " + priority + ")");
-        ServiceFuture sf = sendWriteRequest(
-                new WritePropertyRequest(oid, pid, null, enc, new UnsignedInteger(priority)));
-
-        if (!useCov) {
-            return;
-        }
-
-        if (sf != null) {
-            try {
-                sf.get();
-            } catch (BACnetException e) {
-                LOGGER.debug("", e);
-            }
-        }
-
-        enc = Utils.readProperty(device.conn, device, oid, pid, null);
+        // Without polling, the new value would otherwise only show once a COV notification comes in
+        Runnable then = useCov ? () -> Objects.getDaemonThreadPool().execute(() -> readBack()) : null;
+        sendWrite(enc, new UnsignedInteger(priority), then).exceptionally(e -> {
+            device.writeFailed(this, e);
+            return null;
+        });
+    }
 
+    private void readBack() {
+        Encodable enc = Utils.readProperty(device.conn, device, oid, pid, null, RequestGovernor.Priority.INTERACTIVE);
         if (enc != null) {
             updateValue(enc);
         }
@@ -279,6 +314,7 @@ public class BacnetObject extends BacnetProperty {
     protected void remove() {
         super.remove();
         device.objects.remove(this);
+        stopHistory(true);
     }
 
     private void makeDiscoverAction() {
@@ -326,6 +362,10 @@ public class BacnetObject extends BacnetProperty {
                 new Parameter("Write Priority", ValueType.NUMBER, new Value(writePriority)));
         act.addParameter(
                 new Parameter(CONFIG_WRITABLE, ValueType.BOOL, node.getRoConfig(CONFIG_WRITABLE)));
+        act.addParameter(new Parameter("Deadband", ValueType.NUMBER, new Value(deadband))
+                .setDescription("Numeric values closer than this to the last one shown are not updated"));
+        act.addParameter(new Parameter("Deadband Type", ValueType.makeEnum(DEADBAND_ABSOLUTE, DEADBAND_PERCENT),
+                new Value(deadbandPercent ? DEADBAND_PERCENT : DEADBAND_ABSOLUTE)));
         Node anode = node.getChild(ACTION_EDIT, true);
         if (anode == null) {
             node.createChild(ACTION_EDIT, true).setAction(act).build().setSerializable(false);
@@ -348,6 +388,18 @@ public class BacnetObject extends BacnetProperty {
         writePriority = newPriority;
         node.setRoConfig("Write Priority", new Value(writePriority));
 
+        Value newDeadband = event.getParameter("Deadband");
+        if (newDeadband != null && newDeadband.getNumber() != null) {
+            deadband = Math.max(0, newDeadband.getNumber().doubleValue());
+            node.setRoConfig("Deadband", new Value(deadband));
+        }
+        Value newDeadbandType = event.getParameter("Deadband Type");
+        if (newDeadbandType != null) {
+            deadbandPercent = DEADBAND_PERCENT.equals(newDeadbandType.getString());
+            node.setRoConfig("Deadband Type",
+                    new Value(deadbandPercent ? DEADBAND_PERCENT : DEADBAND_ABSOLUTE));
+        }
+
         setCov(newCovUse);
         setHeadless(headless);
         setWritable(newWritable);
@@ -402,6 +454,9 @@ public class BacnetObject extends BacnetProperty {
     @Override
     protected void subscribe() {
         super.subscribe();
+        if (applyCachedMetadata()) {
+            return;
+        }
         ObjectType type = oid.getObjectType();
         //device.subscribeProperty(hiddenNameProp);
         if (Utils.isOneOf(type, ObjectType.binaryInput, ObjectType.binaryOutput,
@@ -419,6 +474,13 @@ public class BacnetObject extends BacnetProperty {
     @Override
     protected void unsubscribe() {
         super.unsubscribe();
+        unsubscribeMetadata();
+    }
+
+    /**
+     * Stops polling for the object's state texts.
+     */
+    void unsubscribeMetadata() {
         ObjectType type = oid.getObjectType();
         //device.unsubscribeProperty(hiddenNameProp);
         if (Utils.isOneOf(type, ObjectType.binaryInput, ObjectType.binaryOutput,
@@ -434,11 +496,15 @@ public class BacnetObject extends BacnetProperty {
     }
 
     @Override
-    public void updateValue(Encodable value) {
+    public boolean updateValue(Encodable value) {
+        boolean changed = remember(value);
+        if (!shouldForward(value)) {
+            return changed;
+        }
 
         if (value instanceof BACnetError || value instanceof BaseError) {
             node.setValue(null);
-            return;
+            return changed;
         }
 
         ValueType vt = null;
@@ -446,7 +512,7 @@ public class BacnetObject extends BacnetProperty {
         DataType type = getDataType();
         switch (type) {
             case BINARY: {
-                vt = ValueType.makeBool(stateText.get(1), stateText.get(0));
+                vt = getStateType();
                 if (value instanceof com.serotonin.bacnet4j.type.primitive.Boolean) {
                     v = new Value(
                             ((com.serotonin.bacnet4j.type.primitive.Boolean) value).booleanValue());
@@ -474,10 +540,11 @@ public class BacnetObject extends BacnetProperty {
                 } else if (value instanceof UnsignedInteger) {
                     i = ((UnsignedInteger) value).intValue();
                 }
+                List<String> states = stateText;
                 if (i > 0) {
-                    if (stateText.size() >= i) {
-                        vt = ValueType.makeEnum(stateText);
-                        v = new Value(stateText.get(i - 1));
+                    if (states.size() >= i) {
+                        vt = getStateType();
+                        v = new Value(states.get(i - 1));
                     } else {
                         vt = ValueType.NUMBER;
                         v = new Value(i);
@@ -486,9 +553,21 @@ public class BacnetObject extends BacnetProperty {
                 break;
             }
             case OTHER: {
-                Pair<ValueType, Value> vtandv = TypeUtils.parseEncodable(value);
-                vt = vtandv.getLeft();
-                v = vtandv.getRight();
+                Decoder d = decoder;
+                if (d == null || d.clazz != value.getClass()) {
+                    d = Decoder.forValue(value);
+                    decoder = d;
+                }
+                if (d.type != null) {
+                    vt = d.type;
+                    v = d.decode.apply(value);
+                } else {
+                    Pair<ValueType, Value> vtandv = TypeUtils.parseEncodable(value);
+                    if (vtandv != null) {
+                        vt = vtandv.getLeft();
+                        v = vtandv.getRight();
+                    }
+                }
                 break;
             }
         }
@@ -497,14 +576,78 @@ public class BacnetObject extends BacnetProperty {
             v = new Value(value.toString());
         }
 
-        node.setValueType(vt);
+        if (vt != sentType) {
+            sentType = vt;
+            node.setValueType(vt);
+        }
         node.setValue(v);
+        return changed;
+    }
+
+    private ValueType getStateType() {
+        ValueType vt = stateType;
+        if (vt == null) {
+            List<String> states = stateText;
+            if (getDataType() == DataType.BINARY) {
+                vt = ValueType.makeBool(states.get(1), states.get(0));
+            } else {
+                vt = ValueType.makeEnum(states);
+            }
+            stateType = vt;
+        }
+        return vt;
+    }
+
+    /**
+     * Turns present values of one class into node values. Common primitives get a fixed value type
+     * and a direct conversion; anything else is left to TypeUtils.
+     */
+    private static class Decoder {
+        final Class<?> clazz;
+        final ValueType type;
+        final Function<Encodable, Value> decode;
+
+        private Decoder(Class<?> clazz, ValueType type, Function<Encodable, Value> decode) {
+            this.clazz = clazz;
+            this.type = type;
+            this.decode = decode;
+        }
+
+        static Decoder forValue(Encodable value) {
+            Class<?> clazz = value.getClass();
+            if (value instanceof Real) {
+                return new Decoder(clazz, ValueType.NUMBER, e -> new Value(((Real) e).floatValue()));
+            } else if (value instanceof com.serotonin.bacnet4j.type.primitive.Double) {
+                return new Decoder(clazz, ValueType.NUMBER,
+                        e -> new Value(((com.serotonin.bacnet4j.type.primitive.Double) e).doubleValue()));
+            } else if (value instanceof UnsignedInteger) {
+                return new Decoder(clazz, ValueType.NUMBER,
+                        e -> new Value(((UnsignedInteger) e).bigIntegerValue()));
+            } else if (value instanceof SignedInteger) {
+                return new Decoder(clazz, ValueType.NUMBER,
+                        e -> new Value(((SignedInteger) e).bigIntegerValue()));
+            } else if (value instanceof com.serotonin.bacnet4j.type.primitive.Boolean) {
+                return new Decoder(clazz, ValueType.BOOL,
+                        e -> new Value(((com.serotonin.bacnet4j.type.primitive.Boolean) e).booleanValue()));
+            } else if (value instanceof CharacterString) {
+                return new Decoder(clazz, ValueType.STRING, e -> new Value(((CharacterString) e).getValue()));
+            } else if (value instanceof Enumerated) {
+                // The enum's value type only depends on its class
+                ValueType vt = TypeUtils.parseEnumerated((Enumerated) value).getLeft();
+                if (Enumerated.class.equals(clazz)) {
+                    return new Decoder(clazz, vt, e -> new Value(((Enumerated) e).intValue()));
+                }
+                return new Decoder(clazz, vt, e -> new Value(e.toString()));
+            }
+            return new Decoder(clazz, null, null);
+        }
     }
 
     public void updateProperty(Encodable value, PropertyIdentifier propid) {
         if (value == null || value instanceof BACnetError || value instanceof BaseError) {
             return;
         }
+        device.metadata.put(oid, propid, value);
         if (PropertyIdentifier.objectName.equals(propid)) {
             node.setDisplayName(value.toString());
             node.getLink().getSubscriptionManager().postChildUpdate(node, false);
@@ -516,13 +659,72 @@ public class BacnetObject extends BacnetProperty {
             for (CharacterString state : states) {
                 newstates.add(state.getValue());
             }
-            if (!newstates.isEmpty()) {
-                stateText = newstates;
+            if (!newstates.isEmpty() && !newstates.equals(stateText)) {
+                stateText = Collections.unmodifiableList(newstates);
+                stateType = null;
             }
         } else if (PropertyIdentifier.activeText.equals(propid)) {
-            stateText.set(1, value.toString());
+            setStateText(1, value.toString());
         } else if (PropertyIdentifier.inactiveText.equals(propid)) {
-            stateText.set(0, value.toString());
+            setStateText(0, value.toString());
+        }
+    }
+
+    /**
+     * Takes the object's name and state texts from the device's metadata cache.
+     *
+     * @return whether the cache had all the state texts the object would otherwise poll for
+     */
+    boolean applyCachedMetadata() {
+        DeviceMetadataCache cache = device.metadata;
+        if (!cache.isActive()) {
+            return false;
+        }
+        if (node.getDisplayName() == null) {
+            String name = cache.getString(oid, PropertyIdentifier.objectName);
+            if (name != null) {
+                node.setDisplayName(name);
+            }
+        }
+        ObjectType type = oid.getObjectType();
+        if (Utils.isOneOf(type, ObjectType.binaryInput, ObjectType.binaryOutput,
+                ObjectType.binaryValue)) {
+            String active = cache.getString(oid, PropertyIdentifier.activeText);
+            String inactive = cache.getString(oid, PropertyIdentifier.inactiveText);
+            if (active == null || inactive == null) {
+                return false;
+            }
+            if (setStateText(1, active) | setStateText(0, inactive)) {
+                resetFilter();
+            }
+        } else if (Utils.isOneOf(type, ObjectType.multiStateInput, ObjectType.multiStateOutput,
+                ObjectType.multiStateValue, ObjectType.command)) {
+            PropertyIdentifier pid = ObjectType.command.equals(type) ? PropertyIdentifier.actionText
+                    : PropertyIdentifier.stateText;
+            List<String> states = cache.getStrings(oid, pid);
+            if (states == null) {
+                return false;
+            }
+            if (!states.isEmpty() && !states.equals(stateText)) {
+                stateText = Collections.unmodifiableList(new ArrayList<>(states));
+                stateType = null;
+                resetFilter();
+            }
+        }
+        return true;
+    }
+
+    private boolean setStateText(int index, String text) {
+        synchronized (stateTextLock) {
+            List<String> states = stateText;
+            if (index >= states.size() || text.equals(states.get(index))) {
+                return false;
+            }
+            List<String> newstates = new ArrayList<>(states);
+            newstates.set(index, text);
+            stateText = Collections.unmodifiableList(newstates);
+            stateType = null;
+            return true;
         }
     }
 
@@ -552,34 +754,70 @@ public class BacnetObject extends BacnetProperty {
         }
     }
 
-    public void covNotificationReceived(UnsignedInteger timeRemaining,
-            SequenceOf<PropertyValue> listOfValues) {
-        for (BacnetProperty prop : properties) {
-            int index = findPropertyInSequence(listOfValues, prop.pid);
-            if (index >= 0) {
-                PropertyValue propval = listOfValues.get(index);
-                prop.updateValue(propval.getValue());
+    void registerProperty(BacnetProperty prop) {
+        synchronized (properties) {
+            if (properties.add(prop)) {
+                rebuildCovIndex();
             }
         }
     }
 
-    private static int findPropertyInSequence(SequenceOf<PropertyValue> seq,
-            PropertyIdentifier prop) {
-        int i = 0;
-        for (PropertyValue propval : seq) {
-            if (propval.getPropertyIdentifier().equals(prop)) {
-                return i;
+    void unregisterProperty(BacnetProperty prop) {
+        synchronized (properties) {
+            if (properties.remove(prop)) {
+                rebuildCovIndex();
             }
-            i++;
         }
-        return -1;
     }
 
-    private ServiceFuture sendReadRange(ReadRangeRequest request) {
-        return Utils.sendConfirmedRequest(device.conn, device, request);
+    /**
+     * Rebuilds the lookup from property identifier to the properties that receive its COV values.
+     * Must be called while holding the properties lock.
+     */
+    private void rebuildCovIndex() {
+        Map<PropertyIdentifier, List<BacnetProperty>> grouped = new HashMap<>();
+        for (BacnetProperty prop : properties) {
+            grouped.computeIfAbsent(prop.pid, k -> new ArrayList<>(1)).add(prop);
+        }
+        Map<PropertyIdentifier, BacnetProperty[]> index = new HashMap<>(grouped.size() * 2);
+        for (Map.Entry<PropertyIdentifier, List<BacnetProperty>> entry : grouped.entrySet()) {
+            index.put(entry.getKey(), entry.getValue().toArray(new BacnetProperty[0]));
+        }
+        covIndex = index;
+    }
+
+    /**
+     * @return the properties that currently get their values from COV notifications
+     */
+    List<BacnetProperty> getCovProperties() {
+        List<BacnetProperty> covProps = new ArrayList<>();
+        synchronized (properties) {
+            for (BacnetProperty prop : properties) {
+                if (prop.getCovSubscribed()) {
+                    covProps.add(prop);
+                }
+            }
+        }
+        return covProps;
+    }
+
+    public void covNotificationReceived(UnsignedInteger timeRemaining,
+            SequenceOf<PropertyValue> listOfValues) {
+        device.covManager.notificationReceived(this, timeRemaining);
+        Map<PropertyIdentifier, BacnetProperty[]> index = covIndex;
+        for (int i = 0, n = listOfValues.size(); i < n; i++) {
+            PropertyValue propval = listOfValues.get(i);
+            BacnetProperty[] targets = index.get(propval.getPropertyIdentifier());
+            if (targets == null) {
+                continue;
+            }
+            for (BacnetProperty prop : targets) {
+                prop.updateValue(propval.getValue());
+            }
+        }
     }
 
-    private class Db extends Database {
+    private class Db extends Database implements TrendLogMirror.RecordConverter {
 
         public Db() {
             super(node.getName(), null);
@@ -593,63 +831,41 @@ public class BacnetObject extends BacnetProperty {
 
         @Override
         public void query(String path, long from, long to, CompleteHandler<QueryData> handler) {
+            TrendLogMirror m = mirror;
+            if (m != null && m.query(from, to, handler)) {
+                handler.complete();
+                return;
+            }
             Encodable enc = Utils
-                    .readProperty(device.conn, device, oid, PropertyIdentifier.recordCount, null);
+                    .readProperty(device.conn, device, oid, PropertyIdentifier.recordCount, null,
+                            RequestGovernor.Priority.BACKGROUND);
             if (!(enc instanceof UnsignedInteger)) {
                 return;
             }
             int count = ((UnsignedInteger) enc).intValue();
 
-            DateTime start = new DateTime(from);
-            ByTime byTime = new ByTime(start, count);
-            ReadRangeRequest request = new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null,
-                    byTime);
-            while (request != null) {
-                ReadRangeRequest currentRequest = request;
-                request = null;
-                try {
-                    ServiceFuture sf = sendReadRange(currentRequest);
-                    if (sf != null) {
-                        ReadRangeAck ack = sf.get();
-                        request = processReadRangeAck(to, count, ack, handler);
-                    }
-                } catch (BACnetException e) {
-                    LOGGER.debug("", e);
-                }
-            }
-
+            new TrendLogReader(device, oid, (seq, record) -> handleRecord(to, record, handler))
+                    .readFromTime(from, count);
             handler.complete();
         }
 
-        private ReadRangeRequest processReadRangeAck(long to, int recordCount, ReadRangeAck ack,
-                CompleteHandler<QueryData> handler) {
-            for (Encodable record : ack.getItemData()) {
-                long ts = getTimestampFromRecord(record);
-                if (ts > to || ts < 0) {
-                    if (ts > to + 5000) {
-                        return null;
-                    }
-                    continue;
-                }
-                Value v = getValueFromRecord(record);
-                if (v == null) {
-                    continue;
-                }
-                QueryData qd = new QueryData(v, ts);
-                handler.handle(qd);
-            }
-            if (ack.getResultFlags().isMoreItems()) {
-                int itemCount = ack.getItemCount().intValue();
-                BySequenceNumber bySeq = new BySequenceNumber(
-                        ack.getFirstSequenceNumber().longValue() + itemCount,
-                        recordCount - itemCount);
-                return new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null, bySeq);
-            } else {
-                return null;
+        /**
+         * @return false once the records are past the end of the query
+         */
+        private boolean handleRecord(long to, Encodable record, CompleteHandler<QueryData> handler) {
+            long ts = getTimestamp(record);
+            if (ts > to || ts < 0) {
+                return ts <= to + 5000;
+            }
+            Value v = getValue(record);
+            if (v != null) {
+                handler.handle(new QueryData(v, ts));
             }
+            return true;
         }
 
-        private long getTimestampFromRecord(Encodable record) {
+        @Override
+        public long getTimestamp(Encodable record) {
             if (record instanceof LogRecord) {
                 return ((LogRecord) record).getTimestamp().getGC().getTimeInMillis();
             } else if (record instanceof LogMultipleRecord) {
@@ -667,7 +883,8 @@ public class BacnetObject extends BacnetProperty {
             return -1;
         }
 
-        private Value getValueFromRecord(Encodable record) {
+        @Override
+        public Value getValue(Encodable record) {
             Value val = TypeUtils.parseEncodable(record).getRight();
             if (val == null) {
                 return null;
@@ -695,14 +912,14 @@ public class BacnetObject extends BacnetProperty {
 
         @Override
         public QueryData queryFirst(String path) {
-            // TODO Auto-generated method stub
-            return null;
+            TrendLogMirror m = mirror;
+            return m != null ? m.queryFirst() : null;
         }
 
         @Override
         public QueryData queryLast(String path) {
-            // TODO Auto-generated method stub
-            return null;
+            TrendLogMirror m = mirror;
+            return m != null ? m.queryLast() : null;
         }
 
         @Override
@@ -1,13 +1,15 @@
 package bacnet;
 
-import com.serotonin.bacnet4j.ServiceFuture;
 import com.serotonin.bacnet4j.obj.ObjectProperties;
-import com.serotonin.bacnet4j.service.confirmed.WritePropertyRequest;
 import com.serotonin.bacnet4j.type.Encodable;
 import com.serotonin.bacnet4j.type.enumerated.ObjectType;
 import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
 import com.serotonin.bacnet4j.type.primitive.Null;
 import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.Real;
+import com.serotonin.bacnet4j.type.primitive.SignedInteger;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+import java.util.concurrent.CompletableFuture;
 import org.apache.commons.lang3.tuple.Pair;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
@@ -34,6 +36,8 @@ public class BacnetProperty {
 	final ObjectIdentifier oid;
 	final PropertyIdentifier pid;
 	private boolean covSubscribed = false;
+	private Encodable lastValue = null;
+	private Encodable lastForwarded = null;
 
 	BacnetProperty(BacnetDevice device, Node node, ObjectIdentifier oid, PropertyIdentifier pid) {
 		this.device = device;
@@ -55,7 +59,7 @@ public class BacnetProperty {
 	}
 
 	protected void setup() {
-		object.properties.add(this);
+		object.registerProperty(this);
 		makeRemoveAction();
 
 		updateHeadless();
@@ -171,11 +175,19 @@ public class BacnetProperty {
 			return;
 		}
 //		LOGGER.debug("Sending write request : (" + oid.toString() + ", " + pid.toString() + ", null, " + enc.toString() + ", null)");
-		sendWriteRequest(new WritePropertyRequest(oid, pid, null, enc, null));
+		sendWrite(enc, null, null).exceptionally(e -> {
+			device.writeFailed(this, e);
+			return null;
+		});
 	}
 
-	protected ServiceFuture sendWriteRequest(WritePropertyRequest request) {
-		return Utils.sendConfirmedRequest(device.conn, device, request);
+	/**
+	 * Queues a write to the property on the device, without waiting for it to be sent.
+	 *
+	 * @param then run once the write that this one ends up part of has been answered, or null
+	 */
+	protected CompletableFuture<Void> sendWrite(Encodable enc, UnsignedInteger priority, Runnable then) {
+		return device.writeQueue.submit(oid, pid, enc, priority, then);
 	}
 	
 	protected Encodable encodableFromValue(Value val) {
@@ -227,12 +239,86 @@ public class BacnetProperty {
 		return covSubscribed;
 	}
 
-	public void updateValue(Encodable value) {
+	/**
+	 * @return whether the value differs from the one last received
+	 */
+	public boolean updateValue(Encodable value) {
+		boolean changed = remember(value);
+		if (!shouldForward(value)) {
+			return changed;
+		}
 		Pair<ValueType, Value> vtandv = TypeUtils.parseEncodable(value);
 		ValueType vt = vtandv.getLeft();
 		Value v = vtandv.getRight();
 		node.setValueType(vt);
 		node.setValue(v);
+		return changed;
+	}
+
+	protected boolean remember(Encodable value) {
+		boolean changed = lastValue == null || !lastValue.equals(value);
+		lastValue = value;
+		return changed;
+	}
+
+	/**
+	 * Decides whether a new value should be pushed to the node, by comparing it to the last value
+	 * that was pushed. Values equal to it, or numeric values within the object's deadband of it,
+	 * are dropped.
+	 */
+	protected synchronized boolean shouldForward(Encodable value) {
+		Encodable last = lastForwarded;
+		boolean forward = last == null || !(last.equals(value) || withinDeadband(last, value));
+		if (forward) {
+			lastForwarded = value;
+		}
+		device.countUpdate(forward);
+		return forward;
+	}
+
+	/**
+	 * Makes the next value get pushed to the node even if it hasn't changed, e.g. because the way
+	 * it is displayed has.
+	 */
+	protected synchronized void resetFilter() {
+		lastForwarded = null;
+	}
+
+	/**
+	 * Clears the node's value while the device isn't responding, and makes the next value read
+	 * show even if it is the same as before.
+	 */
+	void markUnavailable() {
+		resetFilter();
+		if (node != null) {
+			node.setValue(null);
+		}
+	}
+
+	private boolean withinDeadband(Encodable last, Encodable value) {
+		if (object == null || object.deadband <= 0) {
+			return false;
+		}
+		Double a = toDouble(last);
+		Double b = toDouble(value);
+		if (a == null || b == null) {
+			return false;
+		}
+		double band = object.deadbandPercent ? Math.abs(a) * object.deadband / 100 : object.deadband;
+		return Math.abs(b - a) < band;
+	}
+
+	private static Double toDouble(Encodable value) {
+		if (value instanceof Real) {
+			return (double) ((Real) value).floatValue();
+		} else if (value instanceof com.serotonin.bacnet4j.type.primitive.Double) {
+			return ((com.serotonin.bacnet4j.type.primitive.Double) value).doubleValue();
+		} else if (value instanceof UnsignedInteger) {
+			return ((UnsignedInteger) value).bigIntegerValue().doubleValue();
+		} else if (value instanceof SignedInteger) {
+			return ((SignedInteger) value).bigIntegerValue().doubleValue();
+		}
+		return null;
 	}
 
 	protected void makeRemoveAction() {
@@ -246,7 +332,7 @@ public class BacnetProperty {
 	}
 
 	protected void remove() {
-		object.properties.remove(this);
+		object.unregisterProperty(this);
 		node.delete(false);
 	}
 	
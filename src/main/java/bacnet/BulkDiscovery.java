@@ -0,0 +1,193 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.ObjectPropertyReference;
+import com.serotonin.bacnet4j.type.constructed.SequenceOf;
+import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.error.BACnetError;
+import com.serotonin.bacnet4j.type.error.BaseError;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds all of a device's objects to a folder in one go. Instead of creating each object right
+ * away and leaving its name and state texts to the poll loop, the properties needed to set the
+ * objects up are read first, packed into as few ReadPropertyMultiple requests as the device
+ * allows, and the nodes are only built once everything is in.
+ */
+public class BulkDiscovery {
+	private static final Logger LOGGER = LoggerFactory.getLogger(BulkDiscovery.class);
+
+	// References that got no answer are retried, in smaller batches if the device asked for that
+	private static final int MAX_PASSES = 3;
+	private static final long CHECK_INTERVAL_MILLIS = 100;
+	private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+	private final BacnetDevice device;
+	private final Node fnode;
+	private final Map<ObjectIdentifier, Map<PropertyIdentifier, Encodable>> results = new ConcurrentHashMap<>();
+	private final AtomicInteger received = new AtomicInteger();
+	private int total = 0;
+	private int objectCount = 0;
+	private long startedAt;
+
+	BulkDiscovery(BacnetDevice device, Node fnode) {
+		this.device = device;
+		this.fnode = fnode;
+	}
+
+	void run(ActionResult event) {
+		Table table = event.getTable();
+		table.setMode(Table.Mode.APPEND);
+		startedAt = System.currentTimeMillis();
+		try {
+			discover(table);
+		} finally {
+			table.close();
+		}
+	}
+
+	private void discover(Table table) {
+		SequenceOf<ObjectIdentifier> oids = device.readObjectList();
+		if (oids == null) {
+			report(table, "Could not read object list");
+			return;
+		}
+		List<ObjectIdentifier> added = new ArrayList<>();
+		Map<BacnetProperty, ObjectPropertyReference> pending = new HashMap<>();
+		for (ObjectIdentifier oid : oids) {
+			if (fnode.getChild(oid.toString(), true) != null) {
+				continue;
+			}
+			added.add(oid);
+			for (PropertyIdentifier pid : getPropertiesToRead(oid.getObjectType())) {
+				pending.put(new Collector(oid, pid), new ObjectPropertyReference(oid, pid));
+			}
+		}
+		objectCount = added.size();
+		total = pending.size();
+		report(table, "Reading properties");
+
+		PollPlanner planner = new PollPlanner();
+		for (int pass = 0; pass < MAX_PASSES && !pending.isEmpty(); pass++) {
+			if (!readAll(planner, pending, table)) {
+				report(table, "Device or connection stopped");
+				break;
+			}
+			pending.keySet().removeIf(prop -> ((Collector) prop).done);
+		}
+
+		for (ObjectIdentifier oid : added) {
+			try {
+				device.addObjectNode(fnode, oid, results.getOrDefault(oid, Collections.emptyMap()));
+			} catch (Exception e) {
+				LOGGER.debug("", e);
+			}
+		}
+		report(table, "Done");
+	}
+
+	/**
+	 * Sends one pass of batches over everything still pending, and waits for it to finish.
+	 *
+	 * @return false if the device or connection went away in the meantime
+	 */
+	private boolean readAll(PollPlanner planner, Map<BacnetProperty, ObjectPropertyReference> pending, Table table) {
+		LifecycleGuard.Lease<LocalDevice> ld = device.conn.localDevice.lease();
+		LifecycleGuard.Lease<RemoteDevice> d = device.remoteDevice.lease();
+		if (!ld.isValid() || !d.isValid()) {
+			return false;
+		}
+		planner.invalidate();
+		PollCycle cycle = new PollCycle(planner, device.governor, RequestGovernor.Priority.BACKGROUND, ld, d,
+				planner.getBatches(d.get(), pending, 0), device.getMaxOutstandingRequests());
+		cycle.start();
+		long lastReport = System.currentTimeMillis();
+		try {
+			while (!cycle.isDone()) {
+				Thread.sleep(CHECK_INTERVAL_MILLIS);
+				long now = System.currentTimeMillis();
+				if (now - lastReport >= PROGRESS_INTERVAL_MILLIS) {
+					lastReport = now;
+					report(table, "Reading properties");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return ld.isValid() && d.isValid();
+	}
+
+	private void report(Table table, String status) {
+		double elapsed = (System.currentTimeMillis() - startedAt) / 1000.0;
+		int read = received.get();
+		double rate = elapsed > 0 ? read / elapsed : 0;
+		table.addRow(Row.make(new Value(status), new Value(objectCount), new Value(read), new Value(total),
+				new Value(Math.round(elapsed * 10) / 10.0), new Value(Math.round(rate * 10) / 10.0)));
+	}
+
+	private static List<PropertyIdentifier> getPropertiesToRead(ObjectType type) {
+		List<PropertyIdentifier> pids = new ArrayList<>(4);
+		pids.add(PropertyIdentifier.objectName);
+		pids.add(PropertyIdentifier.description);
+		if (Utils.isOneOf(type, ObjectType.analogInput, ObjectType.analogOutput, ObjectType.analogValue)) {
+			pids.add(PropertyIdentifier.units);
+		} else if (Utils.isOneOf(type, ObjectType.binaryInput, ObjectType.binaryOutput,
+				ObjectType.binaryValue)) {
+			pids.add(PropertyIdentifier.activeText);
+			pids.add(PropertyIdentifier.inactiveText);
+		} else if (Utils.isOneOf(type, ObjectType.multiStateInput, ObjectType.multiStateOutput,
+				ObjectType.multiStateValue)) {
+			pids.add(PropertyIdentifier.stateText);
+		} else if (Utils.isOneOf(type, ObjectType.command)) {
+			pids.add(PropertyIdentifier.actionText);
+		}
+		return pids;
+	}
+
+	/**
+	 * Stands in for a property during discovery, holding on to the first answer it gets.
+	 */
+	private class Collector extends BacnetProperty {
+		volatile boolean done = false;
+
+		Collector(ObjectIdentifier oid, PropertyIdentifier pid) {
+			super(BulkDiscovery.this.device, null, null, oid, pid);
+		}
+
+		@Override
+		protected void setup() {
+			//no-op
+		}
+
+		@Override
+		public boolean updateValue(Encodable value) {
+			if (done) {
+				return false;
+			}
+			done = true;
+			received.incrementAndGet();
+			if (value != null && !(value instanceof BACnetError) && !(value instanceof BaseError)) {
+				results.computeIfAbsent(oid, k -> new ConcurrentHashMap<>()).put(pid, value);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.ResponseConsumer;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.exception.BACnetTimeoutException;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+import com.serotonin.bacnet4j.service.confirmed.ReadPropertyRequest;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to a device that has stopped answering, so that it doesn't hold up
+ * polling for the others. After several requests in a row time out, the breaker opens: requests
+ * fail straight away instead of being sent, and a single read of the device's status is sent now
+ * and then to see whether it is back. The breaker closes again as soon as that read is answered,
+ * and otherwise waits twice as long before the next one.
+ */
+public class CircuitBreaker {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	// Timeouts in a row that open the breaker
+	static final int FAILURE_THRESHOLD = 3;
+	private static final long MIN_PROBE_DELAY_MILLIS = 5000;
+	private static final long MAX_PROBE_DELAY_MILLIS = 300000;
+
+	enum State {
+		CLOSED("Closed"), OPEN("Open"), HALF_OPEN("Half Open");
+
+		final String label;
+
+		State(String label) {
+			this.label = label;
+		}
+	}
+
+	private final BacnetDevice device;
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long probeDelay = MIN_PROBE_DELAY_MILLIS;
+	private ScheduledFuture<?> probeFuture;
+	private final AtomicLong transitions = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	CircuitBreaker(BacnetDevice device) {
+		this.device = device;
+	}
+
+	synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return whether requests may be sent
+	 */
+	synchronized boolean isClosed() {
+		return state == State.CLOSED;
+	}
+
+	/**
+	 * Counts a request, or a poll cycle, that wasn't sent because the breaker was open.
+	 */
+	void countSkipped() {
+		skipped.incrementAndGet();
+	}
+
+	long getTransitions() {
+		return transitions.get();
+	}
+
+	long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Records that the device answered a request, whether or not it was accepted.
+	 */
+	void succeeded() {
+		synchronized (this) {
+			failures = 0;
+			if (state == State.CLOSED) {
+				return;
+			}
+			close();
+		}
+		device.setResponding(true);
+	}
+
+	/**
+	 * Records that a request failed, which counts towards opening the breaker if it timed out.
+	 */
+	void failed(BACnetException e) {
+		if (!(e instanceof BACnetTimeoutException)) {
+			return;
+		}
+		synchronized (this) {
+			failures += 1;
+			if (state != State.CLOSED || failures < FAILURE_THRESHOLD) {
+				return;
+			}
+			probeDelay = MIN_PROBE_DELAY_MILLIS;
+			open();
+		}
+		LOGGER.info("Device " + device.instanceNumber + " not responding, suspending requests");
+		device.setResponding(false);
+	}
+
+	/**
+	 * Closes the breaker without waiting for the device, e.g. when the device is restarted.
+	 */
+	synchronized void reset() {
+		failures = 0;
+		if (state != State.CLOSED) {
+			close();
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock.
+	 */
+	private void open() {
+		state = State.OPEN;
+		transitions.incrementAndGet();
+		try {
+			probeFuture = device.conn.getStpe().schedule(() -> probe(), probeDelay, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock.
+	 */
+	private void close() {
+		state = State.CLOSED;
+		transitions.incrementAndGet();
+		if (probeFuture != null) {
+			probeFuture.cancel(false);
+			probeFuture = null;
+		}
+	}
+
+	private void probe() {
+		LocalDevice ld = device.conn.localDevice.get();
+		RemoteDevice d = device.remoteDevice.get();
+		synchronized (this) {
+			probeFuture = null;
+			if (state != State.OPEN) {
+				return;
+			}
+			if (ld == null || d == null) {
+				// Nothing to probe until the device is brought up again, which resets the breaker
+				return;
+			}
+			state = State.HALF_OPEN;
+			transitions.incrementAndGet();
+		}
+		try {
+			ld.send(d, new ReadPropertyRequest(d.getObjectIdentifier(), PropertyIdentifier.systemStatus),
+					new ResponseConsumer() {
+						@Override
+						public void success(AcknowledgementService ack) {
+							succeeded();
+						}
+
+						@Override
+						public void fail(AckAPDU ack) {
+							succeeded();
+						}
+
+						@Override
+						public void ex(BACnetException e) {
+							LOGGER.debug("", e);
+							probeFailed();
+						}
+					});
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+			probeFailed();
+		}
+	}
+
+	private synchronized void probeFailed() {
+		if (state != State.HALF_OPEN) {
+			return;
+		}
+		probeDelay = Math.min(MAX_PROBE_DELAY_MILLIS, probeDelay * 2);
+		open();
+	}
+}
@@ -0,0 +1,265 @@
+package bacnet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Parameter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks up the declared parameter names of constructors, which BACnet4J isn't compiled to keep
+ * in a form reflection can see. The names are read from the local variable tables in a class's
+ * bytecode the first time one of its constructors is asked about, and then kept for that class.
+ */
+public class ConstructorParamNames {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConstructorParamNames.class);
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_INTERFACE_METHODREF = 11;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_METHOD_HANDLE = 15;
+	private static final int CONSTANT_METHOD_TYPE = 16;
+	private static final int CONSTANT_DYNAMIC = 17;
+	private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+	private static final int CONSTANT_MODULE = 19;
+	private static final int CONSTANT_PACKAGE = 20;
+
+	// Parameter names of each class's constructors, by constructor descriptor
+	private static final ClassValue<Map<String, List<String>>> names = new ClassValue<Map<String, List<String>>>() {
+		@Override
+		protected Map<String, List<String>> computeValue(Class<?> clazz) {
+			try {
+				return readClass(clazz);
+			} catch (IOException | RuntimeException e) {
+				LOGGER.debug("", e);
+				return Collections.emptyMap();
+			}
+		}
+	};
+
+	private ConstructorParamNames() {
+	}
+
+	/**
+	 * @return the names of the constructor's parameters, or the synthesized arg0, arg1, ... names
+	 *         if the class has no debug information
+	 */
+	public static List<String> get(Constructor<?> constr) {
+		List<String> found = names.get(constr.getDeclaringClass()).get(descriptor(constr));
+		if (found != null) {
+			return found;
+		}
+		List<String> synthesized = new ArrayList<>();
+		for (Parameter param : constr.getParameters()) {
+			synthesized.add(param.getName());
+		}
+		return synthesized;
+	}
+
+	private static Map<String, List<String>> readClass(Class<?> clazz) throws IOException {
+		String resource = clazz.getName().replace('.', '/') + ".class";
+		ClassLoader loader = clazz.getClassLoader();
+		InputStream is = loader != null ? loader.getResourceAsStream(resource)
+				: ClassLoader.getSystemResourceAsStream(resource);
+		if (is == null) {
+			return Collections.emptyMap();
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(is))) {
+			in.readInt(); // magic
+			in.readUnsignedShort(); // minor version
+			in.readUnsignedShort(); // major version
+			String[] utf8 = readConstantPool(in);
+			in.readUnsignedShort(); // access flags
+			in.readUnsignedShort(); // this class
+			in.readUnsignedShort(); // super class
+			skip(in, in.readUnsignedShort() * 2); // interfaces
+			int fieldCount = in.readUnsignedShort();
+			for (int i = 0; i < fieldCount; i++) {
+				skip(in, 6);
+				skipAttributes(in);
+			}
+			Map<String, List<String>> result = new HashMap<>();
+			int methodCount = in.readUnsignedShort();
+			for (int i = 0; i < methodCount; i++) {
+				in.readUnsignedShort(); // access flags
+				String name = utf8[in.readUnsignedShort()];
+				String desc = utf8[in.readUnsignedShort()];
+				if (!"<init>".equals(name)) {
+					skipAttributes(in);
+					continue;
+				}
+				List<String> paramNames = readConstructorAttributes(in, utf8, desc);
+				if (paramNames != null) {
+					result.put(desc, paramNames);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * @return the UTF8 constants of the pool by index, with nulls for other kinds of constant
+	 */
+	private static String[] readConstantPool(DataInputStream in) throws IOException {
+		int count = in.readUnsignedShort();
+		String[] utf8 = new String[count];
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case CONSTANT_UTF8:
+				utf8[i] = in.readUTF();
+				break;
+			case CONSTANT_LONG:
+			case CONSTANT_DOUBLE:
+				skip(in, 8);
+				i++; // takes up two entries
+				break;
+			case CONSTANT_INTEGER:
+			case CONSTANT_FLOAT:
+			case CONSTANT_FIELDREF:
+			case CONSTANT_METHODREF:
+			case CONSTANT_INTERFACE_METHODREF:
+			case CONSTANT_NAME_AND_TYPE:
+			case CONSTANT_DYNAMIC:
+			case CONSTANT_INVOKE_DYNAMIC:
+				skip(in, 4);
+				break;
+			case CONSTANT_METHOD_HANDLE:
+				skip(in, 3);
+				break;
+			case CONSTANT_CLASS:
+			case CONSTANT_STRING:
+			case CONSTANT_METHOD_TYPE:
+			case CONSTANT_MODULE:
+			case CONSTANT_PACKAGE:
+				skip(in, 2);
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+		return utf8;
+	}
+
+	private static List<String> readConstructorAttributes(DataInputStream in, String[] utf8, String desc)
+			throws IOException {
+		List<String> paramNames = null;
+		int attrCount = in.readUnsignedShort();
+		for (int i = 0; i < attrCount; i++) {
+			String attrName = utf8[in.readUnsignedShort()];
+			int length = in.readInt();
+			if (!"Code".equals(attrName)) {
+				skip(in, length);
+				continue;
+			}
+			skip(in, 4); // max stack, max locals
+			skip(in, in.readInt()); // code
+			skip(in, in.readUnsignedShort() * 8); // exception table
+			int codeAttrCount = in.readUnsignedShort();
+			for (int j = 0; j < codeAttrCount; j++) {
+				String codeAttrName = utf8[in.readUnsignedShort()];
+				int codeAttrLength = in.readInt();
+				if ("LocalVariableTable".equals(codeAttrName)) {
+					paramNames = readLocalVariableTable(in, utf8, desc);
+				} else {
+					skip(in, codeAttrLength);
+				}
+			}
+		}
+		return paramNames;
+	}
+
+	private static List<String> readLocalVariableTable(DataInputStream in, String[] utf8, String desc)
+			throws IOException {
+		Map<Integer, String> bySlot = new HashMap<>();
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			int startPc = in.readUnsignedShort();
+			in.readUnsignedShort(); // length
+			String name = utf8[in.readUnsignedShort()];
+			in.readUnsignedShort(); // descriptor
+			int slot = in.readUnsignedShort();
+			// Parameters are live from the start, later variables may reuse their slots
+			if (startPc == 0) {
+				bySlot.put(slot, name);
+			}
+		}
+		List<String> paramNames = new ArrayList<>();
+		int slot = 1; // slot 0 holds this
+		int i = 1;
+		while (desc.charAt(i) != ')') {
+			String name = bySlot.get(slot);
+			if (name == null) {
+				return null;
+			}
+			paramNames.add(name);
+			char c = desc.charAt(i);
+			slot += (c == 'J' || c == 'D') ? 2 : 1;
+			while (desc.charAt(i) == '[') {
+				i++;
+			}
+			i = desc.charAt(i) == 'L' ? desc.indexOf(';', i) + 1 : i + 1;
+		}
+		return paramNames;
+	}
+
+	private static void skipAttributes(DataInputStream in) throws IOException {
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			in.readUnsignedShort();
+			skip(in, in.readInt());
+		}
+	}
+
+	private static void skip(DataInputStream in, int n) throws IOException {
+		in.readFully(new byte[n]);
+	}
+
+	private static String descriptor(Constructor<?> constr) {
+		StringBuilder sb = new StringBuilder("(");
+		for (Class<?> type : constr.getParameterTypes()) {
+			sb.append(descriptor(type));
+		}
+		return sb.append(")V").toString();
+	}
+
+	private static String descriptor(Class<?> type) {
+		if (type.isArray()) {
+			return type.getName().replace('.', '/');
+		} else if (!type.isPrimitive()) {
+			return "L" + type.getName().replace('.', '/') + ";";
+		} else if (type == int.class) {
+			return "I";
+		} else if (type == long.class) {
+			return "J";
+		} else if (type == boolean.class) {
+			return "Z";
+		} else if (type == byte.class) {
+			return "B";
+		} else if (type == char.class) {
+			return "C";
+		} else if (type == short.class) {
+			return "S";
+		} else if (type == float.class) {
+			return "F";
+		} else {
+			return "D";
+		}
+	}
+}
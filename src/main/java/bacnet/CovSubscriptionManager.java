@@ -0,0 +1,231 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.ResponseConsumer;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+import com.serotonin.bacnet4j.service.confirmed.SubscribeCOVRequest;
+import com.serotonin.bacnet4j.type.primitive.Boolean;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a device's COV subscriptions alive. Subscriptions with a finite lifetime are renewed
+ * somewhere between 60% and 80% of the way through it, at a point that depends on the
+ * subscription, so renewals for many objects don't all go out at once. If the device rejects a
+ * subscription, or doesn't send the notification it owes after one, the object's COV properties
+ * are polled instead until a notification arrives again.
+ */
+public class CovSubscriptionManager {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CovSubscriptionManager.class);
+
+	static final long CHECK_INTERVAL_SECONDS = 5;
+	private static final double RENEW_AT_MIN = 0.6;
+	private static final double RENEW_AT_SPREAD = 0.2;
+	// Most (re)subscriptions sent per check, anything beyond waits for the next check
+	private static final int MAX_RENEWALS_PER_CHECK = 20;
+	// Retry interval for subscriptions with no lifetime that have fallen back to polling
+	private static final long RETRY_MILLIS = 60000;
+	// renewAt value of a subscription that should be sent at the next check
+	private static final long RENEW_NOW = 1;
+
+	private final BacnetDevice device;
+	private final Map<BacnetObject, Subscription> subscriptions = new ConcurrentHashMap<>();
+	private ScheduledFuture<?> checkFuture = null;
+
+	CovSubscriptionManager(BacnetDevice device) {
+		this.device = device;
+	}
+
+	void subscribe(BacnetObject obj) {
+		Subscription sub = new Subscription(obj, device.conn.addCovSub(obj));
+		obj.covId = sub.id;
+		subscriptions.put(obj, sub);
+		LOGGER.info("subscribing to cov for device " + device.instanceNumber + ", object " + obj.oid);
+		send(sub);
+		startChecking();
+	}
+
+	void unsubscribe(BacnetObject obj) {
+		Subscription sub = subscriptions.remove(obj);
+		if (sub == null) {
+			return;
+		}
+		device.conn.removeCovSub(sub.id);
+		obj.covId = -1;
+		setFallback(sub, false);
+		LOGGER.info("unsubscribing from cov for device " + device.instanceNumber + ", object " + obj.oid);
+		RemoteDevice d = device.remoteDevice.get();
+		LocalDevice ld = device.conn.localDevice.get();
+		if (d != null && ld != null) {
+			device.governor.send(ld, d, new SubscribeCOVRequest(new UnsignedInteger(sub.id), obj.oid, null, null),
+					RequestGovernor.Priority.COV);
+		}
+		if (subscriptions.isEmpty()) {
+			stopChecking();
+		}
+	}
+
+	/**
+	 * Stops renewing and forgets every subscription, without telling the device, e.g. when the
+	 * device is removed.
+	 */
+	void stop() {
+		stopChecking();
+		for (Subscription sub : new ArrayList<>(subscriptions.values())) {
+			subscriptions.remove(sub.obj);
+			device.conn.removeCovSub(sub.id);
+			sub.obj.covId = -1;
+			setFallback(sub, false);
+		}
+	}
+
+	/**
+	 * Resubscribes everything, e.g. after the device has been found again.
+	 */
+	void resubscribeAll() {
+		for (Subscription sub : subscriptions.values()) {
+			sub.renewAt = RENEW_NOW;
+		}
+	}
+
+	void notificationReceived(BacnetObject obj, UnsignedInteger timeRemaining) {
+		Subscription sub = subscriptions.get(obj);
+		if (sub == null) {
+			return;
+		}
+		sub.awaitingNotificationUntil = 0;
+		setFallback(sub, false);
+		if (sub.lifetimeSeconds > 0 && timeRemaining != null && timeRemaining.longValue() == 0) {
+			// The device considers the subscription to be over already
+			sub.renewAt = RENEW_NOW;
+		}
+	}
+
+	private synchronized void startChecking() {
+		if (checkFuture == null) {
+			checkFuture = device.conn.getStpe().scheduleWithFixedDelay(() -> check(), CHECK_INTERVAL_SECONDS,
+					CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	private synchronized void stopChecking() {
+		if (checkFuture != null) {
+			checkFuture.cancel(false);
+			checkFuture = null;
+		}
+	}
+
+	private void check() {
+		long now = System.currentTimeMillis();
+		List<Subscription> due = new ArrayList<>();
+		for (Subscription sub : subscriptions.values()) {
+			if (sub.awaitingNotificationUntil > 0 && now > sub.awaitingNotificationUntil) {
+				LOGGER.debug("No COV notification for object " + sub.obj.oid + " of device " + device.instanceNumber
+						+ ", polling it instead");
+				sub.awaitingNotificationUntil = 0;
+				setFallback(sub, true);
+			}
+			if (sub.renewAt > 0 && now >= sub.renewAt) {
+				due.add(sub);
+			}
+		}
+		due.sort((a, b) -> Long.compare(a.renewAt, b.renewAt));
+		for (int i = 0; i < due.size() && i < MAX_RENEWALS_PER_CHECK; i++) {
+			send(due.get(i));
+		}
+	}
+
+	private void send(Subscription sub) {
+		long lifetime = device.getCovLifetime();
+		sub.lifetimeSeconds = lifetime;
+		long now = System.currentTimeMillis();
+		sub.renewAt = nextRenewal(sub, now);
+		sub.awaitingNotificationUntil = now + device.conn.timeout * (device.conn.retries + 1L) + CHECK_INTERVAL_SECONDS * 1000;
+
+		RemoteDevice d = device.remoteDevice.get();
+		LocalDevice ld = device.conn.localDevice.get();
+		if (d == null || ld == null) {
+			return;
+		}
+		SubscribeCOVRequest request = new SubscribeCOVRequest(new UnsignedInteger(sub.id), sub.obj.oid,
+				Boolean.valueOf(device.isCovConfirmed()), new UnsignedInteger(lifetime));
+		try {
+			device.governor.send(ld, d, request, RequestGovernor.Priority.COV, new ResponseConsumer() {
+				@Override
+				public void success(AcknowledgementService ack) {
+				}
+
+				@Override
+				public void fail(AckAPDU ack) {
+					LOGGER.debug("COV subscription for object " + sub.obj.oid + " of device " + device.instanceNumber
+							+ " rejected: " + ack);
+					setFallback(sub, true);
+				}
+
+				@Override
+				public void ex(BACnetException e) {
+					LOGGER.debug("", e);
+					setFallback(sub, true);
+				}
+			});
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+			setFallback(sub, true);
+		}
+	}
+
+	private static long nextRenewal(Subscription sub, long now) {
+		if (sub.lifetimeSeconds <= 0) {
+			return sub.fallback ? now + RETRY_MILLIS : 0;
+		}
+		double spread = (sub.id % 1000) / 1000.0;
+		return now + (long) (sub.lifetimeSeconds * 1000 * (RENEW_AT_MIN + RENEW_AT_SPREAD * spread));
+	}
+
+	private void setFallback(Subscription sub, boolean fallback) {
+		if (fallback && subscriptions.get(sub.obj) != sub) {
+			// A late failure for a subscription that has since been dropped
+			return;
+		}
+		synchronized (sub) {
+			if (sub.fallback == fallback) {
+				return;
+			}
+			sub.fallback = fallback;
+			if (fallback && sub.lifetimeSeconds <= 0) {
+				sub.renewAt = System.currentTimeMillis() + RETRY_MILLIS;
+			}
+		}
+		for (BacnetProperty prop : sub.obj.getCovProperties()) {
+			if (fallback) {
+				device.subscribeProperty(prop);
+			} else {
+				device.unsubscribeProperty(prop);
+			}
+		}
+	}
+
+	private static class Subscription {
+		final BacnetObject obj;
+		final long id;
+		volatile long lifetimeSeconds;
+		volatile long renewAt = 0;
+		volatile long awaitingNotificationUntil = 0;
+		boolean fallback = false;
+
+		Subscription(BacnetObject obj, long id) {
+			this.obj = obj;
+			this.id = id;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.service.unconfirmed.WhoIsRequest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Locates the devices of a connection. Lookups run on a small pool of their own, so that devices
+ * which don't answer only tie up a few threads while they time out. When a connection restores
+ * its devices, a single global WhoIs goes out first; devices that answer it are located straight
+ * away from the I-Am, the most recently connected first, and only the rest are looked up one by
+ * one. Devices that can't be found are retried with exponential backoff, or as soon as they send
+ * an I-Am.
+ */
+public class DeviceBringUp {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DeviceBringUp.class);
+
+	static final int CONNECT_THREADS = 8;
+	private static final long MIN_BACKOFF_MILLIS = 10000;
+	private static final long MAX_BACKOFF_MILLIS = 600000;
+	// Extra time, on top of the connection timeout, given to I-Ams answering the shared WhoIs
+	private static final long SWEEP_GRACE_MILLIS = 1000;
+
+	private final BacnetConn conn;
+	private final ThreadPoolExecutor workers;
+	private final Map<BacnetDevice, Attempt> attempts = new ConcurrentHashMap<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile long sweepUntil = 0;
+
+	DeviceBringUp(BacnetConn conn, String name) {
+		this.conn = conn;
+		this.workers = Utils.createDaemonExecutor("bacnet-connect-" + name + "-", CONNECT_THREADS,
+				new PriorityBlockingQueue<>());
+	}
+
+	/**
+	 * Asks every device on the network to announce itself. Devices submitted while the answers
+	 * are still coming in wait for them rather than each sending a WhoIs of their own.
+	 */
+	void sweep() {
+		LocalDevice ld = conn.localDevice.get();
+		if (ld == null) {
+			return;
+		}
+		sweepUntil = System.currentTimeMillis() + conn.timeout + SWEEP_GRACE_MILLIS;
+		try {
+			ld.sendGlobalBroadcast(new WhoIsRequest());
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+			sweepUntil = 0;
+		}
+	}
+
+	/**
+	 * Starts locating a device, dropping any retry that was pending for it.
+	 */
+	void submit(BacnetDevice dev) {
+		Attempt attempt = new Attempt(dev);
+		Attempt old = attempts.put(dev, attempt);
+		if (old != null) {
+			old.cancelled = true;
+		}
+		long wait = sweepUntil - System.currentTimeMillis();
+		if (wait > 0 && !isAnnounced(dev)) {
+			schedule(attempt, wait);
+		} else {
+			enqueue(attempt, -1);
+		}
+	}
+
+	/**
+	 * Stops locating a device, e.g. because it was stopped or removed.
+	 */
+	void cancel(BacnetDevice dev) {
+		Attempt attempt = attempts.remove(dev);
+		if (attempt != null) {
+			attempt.cancelled = true;
+		}
+	}
+
+	/**
+	 * Locates a waiting device right away once it announces itself.
+	 */
+	void iAmReceived(RemoteDevice d) {
+		BacnetDevice dev = conn.getDevice(d.getInstanceNumber());
+		if (dev == null) {
+			dev = conn.getDevice(d.getAddress());
+		}
+		Attempt attempt = dev != null ? attempts.get(dev) : null;
+		if (attempt != null && attempt.waiting) {
+			enqueue(attempt, -1);
+		}
+	}
+
+	private boolean isAnnounced(BacnetDevice dev) {
+		LocalDevice ld = conn.localDevice.get();
+		return ld != null && dev.instanceNumber >= 0 && ld.getCachedRemoteDevice(dev.instanceNumber) != null;
+	}
+
+	private void schedule(Attempt attempt, long delayMillis) {
+		int generation;
+		synchronized (attempt) {
+			attempt.waiting = true;
+			generation = ++attempt.generation;
+		}
+		try {
+			conn.getStpe().schedule(() -> enqueue(attempt, generation), delayMillis, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+		}
+	}
+
+	/**
+	 * @param generation the wait this comes at the end of, so that a timer left over from an
+	 *            earlier wait doesn't cut a later one short, or -1 to end whatever wait is current
+	 */
+	private void enqueue(Attempt attempt, int generation) {
+		synchronized (attempt) {
+			if (attempt.cancelled || (!attempt.waiting && attempt.queued)
+					|| (generation >= 0 && generation != attempt.generation)) {
+				return;
+			}
+			attempt.waiting = false;
+			attempt.queued = true;
+		}
+		attempt.announced = isAnnounced(attempt.dev);
+		attempt.order = sequence.incrementAndGet();
+		try {
+			workers.execute(attempt);
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+		}
+	}
+
+	private class Attempt implements Runnable, Comparable<Attempt> {
+		final BacnetDevice dev;
+		final long lastConnected;
+		long backoff = 0;
+		int generation = 0;
+		volatile boolean cancelled = false;
+		volatile boolean waiting = false;
+		volatile boolean queued = false;
+		volatile boolean announced = false;
+		volatile long order;
+
+		Attempt(BacnetDevice dev) {
+			this.dev = dev;
+			this.lastConnected = dev.getLastConnected();
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				queued = false;
+				if (cancelled) {
+					return;
+				}
+			}
+			boolean found = false;
+			try {
+				found = dev.findDevice();
+			} catch (Exception e) {
+				LOGGER.debug("", e);
+			}
+			if (found) {
+				attempts.remove(dev, this);
+				return;
+			}
+			backoff = backoff == 0 ? MIN_BACKOFF_MILLIS : Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+			LOGGER.debug("Device " + dev.instanceNumber + " not found, retrying in " + backoff + " ms");
+			schedule(this, backoff);
+		}
+
+		/**
+		 * Devices that have announced themselves go first, then the ones that were connected most
+		 * recently, and otherwise the order they were queued in.
+		 */
+		@Override
+		public int compareTo(Attempt other) {
+			if (announced != other.announced) {
+				return announced ? -1 : 1;
+			}
+			if (lastConnected != other.lastConnected) {
+				return Long.compare(other.lastConnected, lastConnected);
+			}
+			return Long.compare(order, other.order);
+		}
+	}
+}
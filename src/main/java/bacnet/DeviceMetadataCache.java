@@ -0,0 +1,295 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.SequenceOf;
+import com.serotonin.bacnet4j.type.enumerated.ObjectType;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a device's static metadata (object names, state texts, units, property lists and the
+ * object list) on disk, so that it doesn't have to be read again after a restart. The cache
+ * belongs to a particular databaseRevision of the device; if the device reports a different one
+ * when it is found, the cache is emptied and filled again as values are read.
+ */
+public class DeviceMetadataCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DeviceMetadataCache.class);
+
+	static final String CACHE_DIR = "bacnet-metadata";
+	// Changes are written out in one go, this long after the first of them
+	private static final long SAVE_DELAY_SECONDS = 10;
+
+	private final ScheduledExecutorService stpe;
+	private final Map<ObjectIdentifier, Map<PropertyIdentifier, Object>> objects = new ConcurrentHashMap<>();
+	private volatile List<ObjectIdentifier> objectList = null;
+	private int instanceNumber = -1;
+	// databaseRevision the contents belong to, or -1 if the current one isn't known
+	private volatile long revision = -1;
+	// Whether the revision has been checked against the device since the cache was loaded
+	private volatile boolean validated = false;
+	private ScheduledFuture<?> saveFuture = null;
+
+	DeviceMetadataCache(ScheduledExecutorService stpe) {
+		this.stpe = stpe;
+	}
+
+	/**
+	 * Checks the cache against the device's current databaseRevision, loading it from disk first
+	 * if need be. If the revision differs, the cache is emptied and starts over for the new one.
+	 *
+	 * @param revision the device's databaseRevision, or -1 if it couldn't be read, in which case
+	 *            the cache is not used at all, but is kept as it is for the next time
+	 * @return whether the cached metadata can be used as is
+	 */
+	synchronized boolean validate(int instanceNumber, long revision) {
+		if (instanceNumber != this.instanceNumber) {
+			clear();
+			this.instanceNumber = instanceNumber;
+			load();
+		}
+		validated = revision >= 0;
+		if (revision < 0) {
+			return false;
+		}
+		if (revision == this.revision) {
+			return true;
+		}
+		if (this.revision >= 0 || !objects.isEmpty()) {
+			LOGGER.info("Metadata of device " + instanceNumber + " is out of date (databaseRevision " + this.revision
+					+ ", device has " + revision + ")");
+		}
+		clear();
+		this.revision = revision;
+		scheduleSave();
+		return false;
+	}
+
+	/**
+	 * @return whether values are being cached, i.e. the device's databaseRevision is known
+	 */
+	boolean isActive() {
+		return validated && revision >= 0;
+	}
+
+	String getString(ObjectIdentifier oid, PropertyIdentifier pid) {
+		Object o = get(oid, pid);
+		return o instanceof String ? (String) o : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	List<String> getStrings(ObjectIdentifier oid, PropertyIdentifier pid) {
+		Object o = get(oid, pid);
+		return o instanceof List ? (List<String>) o : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	SequenceOf<PropertyIdentifier> getPropertyList(ObjectIdentifier oid) {
+		Object o = get(oid, PropertyIdentifier.propertyList);
+		if (!(o instanceof List)) {
+			return null;
+		}
+		SequenceOf<PropertyIdentifier> list = new SequenceOf<>();
+		for (Number id : (List<Number>) o) {
+			list.add(PropertyIdentifier.forId(id.intValue()));
+		}
+		return list;
+	}
+
+	SequenceOf<ObjectIdentifier> getObjectList() {
+		List<ObjectIdentifier> list = objectList;
+		return isActive() && list != null ? new SequenceOf<>(list) : null;
+	}
+
+	private Object get(ObjectIdentifier oid, PropertyIdentifier pid) {
+		if (!isActive()) {
+			return null;
+		}
+		Map<PropertyIdentifier, Object> props = objects.get(oid);
+		return props == null ? null : props.get(pid);
+	}
+
+	/**
+	 * Records a metadata value read from the device. Values of other kinds of property are ignored.
+	 */
+	@SuppressWarnings("unchecked")
+	void put(ObjectIdentifier oid, PropertyIdentifier pid, Encodable value) {
+		if (!isActive() || value == null) {
+			return;
+		}
+		Object o;
+		if (PropertyIdentifier.stateText.equals(pid) || PropertyIdentifier.actionText.equals(pid)) {
+			List<String> texts = new ArrayList<>();
+			for (Encodable text : (SequenceOf<? extends Encodable>) value) {
+				texts.add(text.toString());
+			}
+			o = texts;
+		} else if (PropertyIdentifier.propertyList.equals(pid)) {
+			List<Integer> ids = new ArrayList<>();
+			for (PropertyIdentifier id : (SequenceOf<PropertyIdentifier>) value) {
+				ids.add(id.intValue());
+			}
+			o = ids;
+		} else if (PropertyIdentifier.objectName.equals(pid) || PropertyIdentifier.description.equals(pid)
+				|| PropertyIdentifier.units.equals(pid) || PropertyIdentifier.activeText.equals(pid)
+				|| PropertyIdentifier.inactiveText.equals(pid)) {
+			o = value.toString();
+		} else {
+			return;
+		}
+		Object old = objects.computeIfAbsent(oid, k -> new ConcurrentHashMap<>()).put(pid, o);
+		if (!o.equals(old)) {
+			scheduleSave();
+		}
+	}
+
+	void putObjectList(SequenceOf<ObjectIdentifier> oids) {
+		if (!isActive() || oids == null) {
+			return;
+		}
+		List<ObjectIdentifier> list = new ArrayList<>();
+		for (ObjectIdentifier oid : oids) {
+			list.add(oid);
+		}
+		objectList = list;
+		scheduleSave();
+	}
+
+	/**
+	 * Removes the cache, e.g. when the device is removed.
+	 */
+	synchronized void delete() {
+		if (saveFuture != null) {
+			saveFuture.cancel(false);
+			saveFuture = null;
+		}
+		clear();
+		revision = -1;
+		validated = false;
+		if (instanceNumber >= 0) {
+			getFile(instanceNumber).delete();
+		}
+	}
+
+	private void clear() {
+		objects.clear();
+		objectList = null;
+	}
+
+	private synchronized void scheduleSave() {
+		if (saveFuture == null && instanceNumber >= 0) {
+			saveFuture = stpe.schedule(() -> save(), SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	private static File getFile(int instanceNumber) {
+		return new File(CACHE_DIR, "device-" + instanceNumber + ".json");
+	}
+
+	private void load() {
+		File file = getFile(instanceNumber);
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			JsonObject jo = new JsonObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+			Number rev = jo.get("Database Revision");
+			revision = rev != null ? rev.longValue() : -1;
+			JsonArray jlist = jo.get("Object List");
+			if (jlist != null) {
+				List<ObjectIdentifier> list = new ArrayList<>();
+				for (Object o : jlist) {
+					list.add(parseOid((String) o));
+				}
+				objectList = list;
+			}
+			JsonObject jobjs = jo.get("Objects");
+			if (jobjs != null) {
+				for (Entry<String, Object> entry : jobjs) {
+					Map<PropertyIdentifier, Object> props = new ConcurrentHashMap<>();
+					for (Entry<String, Object> prop : (JsonObject) entry.getValue()) {
+						Object value = prop.getValue();
+						if (value instanceof JsonArray) {
+							value = new ArrayList<Object>(((JsonArray) value).getList());
+						}
+						props.put(PropertyIdentifier.forId(Integer.parseInt(prop.getKey())), value);
+					}
+					objects.put(parseOid(entry.getKey()), props);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.debug("", e);
+			clear();
+			revision = -1;
+		}
+	}
+
+	private void save() {
+		JsonObject jo = new JsonObject();
+		synchronized (this) {
+			saveFuture = null;
+			if (instanceNumber < 0) {
+				return;
+			}
+			jo.put("Database Revision", revision);
+			List<ObjectIdentifier> list = objectList;
+			if (list != null) {
+				JsonArray jlist = new JsonArray();
+				for (ObjectIdentifier oid : list) {
+					jlist.add(formatOid(oid));
+				}
+				jo.put("Object List", jlist);
+			}
+			JsonObject jobjs = new JsonObject();
+			for (Entry<ObjectIdentifier, Map<PropertyIdentifier, Object>> entry : objects.entrySet()) {
+				JsonObject jprops = new JsonObject();
+				for (Entry<PropertyIdentifier, Object> prop : entry.getValue().entrySet()) {
+					Object value = prop.getValue();
+					if (value instanceof List) {
+						value = new JsonArray(new ArrayList<>((List<?>) value));
+					}
+					jprops.put(Integer.toString(prop.getKey().intValue()), value);
+				}
+				jobjs.put(formatOid(entry.getKey()), jprops);
+			}
+			jo.put("Objects", jobjs);
+		}
+		File file = getFile(instanceNumber);
+		try {
+			File dir = file.getParentFile();
+			if (dir != null) {
+				dir.mkdirs();
+			}
+			File tmp = new File(file.getPath() + ".tmp");
+			Files.write(tmp.toPath(), jo.encodePrettily().getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			LOGGER.debug("", e);
+		}
+	}
+
+	private static String formatOid(ObjectIdentifier oid) {
+		return oid.getObjectType().intValue() + ":" + oid.getInstanceNumber();
+	}
+
+	private static ObjectIdentifier parseOid(String s) {
+		String[] arr = s.split(":");
+		return new ObjectIdentifier(ObjectType.forId(Integer.parseInt(arr[0])), Integer.parseInt(arr[1]));
+	}
+}
@@ -0,0 +1,153 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.util.RequestUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The devices a connection has heard an I-Am from, along with their labels for the add device
+ * action, kept sorted by instance number. An I-Am only updates the label of the device it came
+ * from, and the action is rebuilt once things go quiet for a moment rather than after every I-Am.
+ * Device names are read on a few threads of their own, so a global WhoIs doesn't start a read
+ * for every device on the site at once.
+ */
+public class DiscoveredDevices {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DiscoveredDevices.class);
+
+	static final int NAME_READ_THREADS = 4;
+	private static final long REFRESH_DELAY_MILLIS = 1000;
+
+	private final BacnetConn conn;
+	private final ScheduledExecutorService stpe;
+	private final Runnable refresh;
+	private final Map<Integer, RemoteDevice> devices = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Integer, String> labels = new ConcurrentSkipListMap<>();
+	// Instance numbers whose names are being read
+	private final Set<Integer> reading = ConcurrentHashMap.newKeySet();
+	private final ThreadPoolExecutor readers;
+	private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+	/**
+	 * @param refresh rebuilds whatever shows the labels
+	 */
+	DiscoveredDevices(BacnetConn conn, ScheduledExecutorService stpe, String name, Runnable refresh) {
+		this.conn = conn;
+		this.stpe = stpe;
+		this.refresh = refresh;
+		this.readers = Utils.createDaemonExecutor("bacnet-discovery-" + name + "-", NAME_READ_THREADS,
+				new LinkedBlockingQueue<>());
+	}
+
+	RemoteDevice get(int instanceNumber) {
+		return devices.get(instanceNumber);
+	}
+
+	Map<Integer, RemoteDevice> getDevices() {
+		return Collections.unmodifiableMap(devices);
+	}
+
+	/**
+	 * @return the instance numbers of the devices within the range, inclusive
+	 */
+	List<Integer> getInstances(int low, int high) {
+		return new ArrayList<>(labels.subMap(low, true, high, true).keySet());
+	}
+
+	/**
+	 * @return the labels of the devices, in order of instance number
+	 */
+	Set<String> getLabels() {
+		return new LinkedHashSet<>(labels.values());
+	}
+
+	/**
+	 * Records a device that sent an I-Am, and reads its name unless it's already known.
+	 */
+	void add(RemoteDevice d) {
+		int inst = d.getInstanceNumber();
+		RemoteDevice previous = devices.put(inst, d);
+		if (previous != null && previous != d && d.getDeviceProperty(PropertyIdentifier.objectName) == null) {
+			Encodable name = previous.getDeviceProperty(PropertyIdentifier.objectName);
+			if (name != null) {
+				d.setDeviceProperty(PropertyIdentifier.objectName, name);
+			}
+		}
+		updateLabel(inst);
+		if (d.getDeviceProperty(PropertyIdentifier.objectName) == null && reading.add(inst)) {
+			try {
+				readers.execute(() -> readName(inst));
+			} catch (Exception e) {
+				LOGGER.debug("", e);
+				reading.remove(inst);
+			}
+		}
+	}
+
+	private void readName(int inst) {
+		try {
+			RemoteDevice d = devices.get(inst);
+			LocalDevice ld = conn.localDevice.get();
+			if (d == null || ld == null) {
+				return;
+			}
+			Encodable enc = null;
+			try {
+				enc = RequestUtils.sendReadPropertyAllowNull(ld, d, d.getObjectIdentifier(),
+						PropertyIdentifier.objectName);
+			} catch (BACnetException e) {
+				LOGGER.debug("", e);
+			}
+			if (enc != null) {
+				d.setDeviceProperty(PropertyIdentifier.objectName, enc);
+				updateLabel(inst);
+			}
+			LOGGER.trace("iAm processed: " + d);
+		} finally {
+			reading.remove(inst);
+		}
+	}
+
+	private void updateLabel(int inst) {
+		RemoteDevice d = devices.get(inst);
+		if (d == null) {
+			return;
+		}
+		String label = Utils.getDeviceLabel(inst, d);
+		if (!label.equals(labels.put(inst, label))) {
+			scheduleRefresh();
+		}
+	}
+
+	private void scheduleRefresh() {
+		if (!refreshPending.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			stpe.schedule(() -> {
+				refreshPending.set(false);
+				refresh.run();
+			}, REFRESH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+			refreshPending.set(false);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package bacnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.dsa.iot.dslink.util.json.JsonObject;
+
+/**
+ * Fixed-capacity store of a device's most recent event notifications. Once full, each new event
+ * overwrites the oldest one, so an alarm flood costs a bounded amount of memory no matter how
+ * long it lasts.
+ */
+public class EventLog {
+
+	private JsonObject[] entries;
+	private long[] sequenceNumbers;
+	// Index the next event will be written to
+	private int head = 0;
+	private int size = 0;
+	private long lastSequenceNumber = 0;
+
+	EventLog(int capacity) {
+		int n = Math.max(1, capacity);
+		this.entries = new JsonObject[n];
+		this.sequenceNumbers = new long[n];
+	}
+
+	/**
+	 * @return the sequence number assigned to the event
+	 */
+	synchronized long add(JsonObject event) {
+		lastSequenceNumber += 1;
+		entries[head] = event;
+		sequenceNumbers[head] = lastSequenceNumber;
+		head = (head + 1) % entries.length;
+		if (size < entries.length) {
+			size += 1;
+		}
+		return lastSequenceNumber;
+	}
+
+	/**
+	 * Changes how many events are kept, keeping the most recent ones if it shrinks.
+	 */
+	synchronized void setCapacity(int capacity) {
+		int n = Math.max(1, capacity);
+		if (n == entries.length) {
+			return;
+		}
+		int keep = Math.min(size, n);
+		JsonObject[] newEntries = new JsonObject[n];
+		long[] newSequenceNumbers = new long[n];
+		for (int i = 0; i < keep; i++) {
+			int from = Math.floorMod(head - keep + i, entries.length);
+			newEntries[i] = entries[from];
+			newSequenceNumbers[i] = sequenceNumbers[from];
+		}
+		entries = newEntries;
+		sequenceNumbers = newSequenceNumbers;
+		size = keep;
+		head = keep % n;
+	}
+
+	synchronized int getCapacity() {
+		return entries.length;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	synchronized void clear() {
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = null;
+		}
+		head = 0;
+		size = 0;
+	}
+
+	/**
+	 * @param offset number of events to skip, counting back from the most recent
+	 * @param limit most events to return
+	 * @return the requested events, most recent first
+	 */
+	synchronized List<Entry> page(int offset, int limit) {
+		List<Entry> page = new ArrayList<>();
+		for (int i = Math.max(0, offset); i < size && page.size() < limit; i++) {
+			int idx = Math.floorMod(head - 1 - i, entries.length);
+			page.add(new Entry(sequenceNumbers[idx], entries[idx]));
+		}
+		return page;
+	}
+
+	static class Entry {
+		final long sequenceNumber;
+		final JsonObject event;
+
+		Entry(long sequenceNumber, JsonObject event) {
+			this.sequenceNumber = sequenceNumber;
+			this.event = event;
+		}
+	}
+}
@@ -16,7 +16,12 @@ public class HiddenProperty extends BacnetProperty {
 	}
 	
 	@Override
-	public void updateValue(Encodable value) {
+	public boolean updateValue(Encodable value) {
+		boolean changed = remember(value);
 		object.updateProperty(value, pid);
+		if (changed) {
+			object.resetFilter();
+		}
+		return changed;
 	}
 }
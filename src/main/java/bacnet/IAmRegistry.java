@@ -0,0 +1,82 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.service.unconfirmed.WhoIsRequest;
+import com.serotonin.bacnet4j.type.constructed.Address;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Matches incoming I-Ams to lookups of devices by address. All lookups of the same address share
+ * one pending future and one WhoIs, and an I-Am completes them with a single map lookup, so the
+ * number of lookups in flight doesn't add to the work done for each I-Am.
+ */
+public class IAmRegistry {
+	private static final Logger LOGGER = LoggerFactory.getLogger(IAmRegistry.class);
+
+	private final ScheduledExecutorService stpe;
+	private final Map<Address, CompletableFuture<RemoteDevice>> pending = new ConcurrentHashMap<>();
+
+	IAmRegistry(ScheduledExecutorService stpe) {
+		this.stpe = stpe;
+	}
+
+	/**
+	 * Sends a WhoIs to the address, unless a lookup of it is already in flight, in which case that
+	 * one is joined.
+	 *
+	 * @return completes with the device that answers, or with null if none does within the timeout
+	 */
+	CompletableFuture<RemoteDevice> lookup(LocalDevice ld, Address address, long timeoutMillis) {
+		CompletableFuture<RemoteDevice> created = new CompletableFuture<>();
+		CompletableFuture<RemoteDevice> future = pending.putIfAbsent(address, created);
+		if (future != null) {
+			return future;
+		}
+		try {
+			stpe.schedule(() -> expire(address, created), timeoutMillis, TimeUnit.MILLISECONDS);
+			ld.send(address, new WhoIsRequest());
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+			expire(address, created);
+		}
+		return created;
+	}
+
+	/**
+	 * Completes the lookups waiting on the device's address.
+	 */
+	void iAmReceived(RemoteDevice d) {
+		Address address = d.getAddress();
+		if (address == null) {
+			return;
+		}
+		CompletableFuture<RemoteDevice> future = pending.remove(address);
+		if (future != null) {
+			future.complete(d);
+		}
+	}
+
+	/**
+	 * Gives up on all lookups in flight, e.g. when the connection stops.
+	 */
+	void clear() {
+		for (Address address : pending.keySet()) {
+			CompletableFuture<RemoteDevice> future = pending.remove(address);
+			if (future != null) {
+				future.complete(null);
+			}
+		}
+	}
+
+	private void expire(Address address, CompletableFuture<RemoteDevice> future) {
+		pending.remove(address, future);
+		future.complete(null);
+	}
+}
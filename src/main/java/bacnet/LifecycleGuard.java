@@ -0,0 +1,131 @@
+package bacnet;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Holds a resource that gets replaced or torn down over the lifetime of a node, such as a
+ * connection's LocalDevice or a device's RemoteDevice.
+ * <p>
+ * Reads never block: they see either the current resource or null, and can keep a
+ * {@link Lease} to find out later whether the resource they used has since been replaced.
+ * Lifecycle transitions are serialized with each other, but don't wait for in-flight reads, so a
+ * restart no longer stalls every request on the connection.
+ */
+public class LifecycleGuard<T> {
+
+	private final StampedLock lock = new StampedLock();
+	// Keeps concurrent computeIfAbsent calls from creating the resource twice, without holding up
+	// the other transitions
+	private final Object computeLock = new Object();
+	private volatile Lease<T> current = new Lease<>(this, null, 0);
+
+	/**
+	 * @return the current resource, or null if it isn't available
+	 */
+	public T get() {
+		return current.value;
+	}
+
+	/**
+	 * @return the current resource along with the epoch it belongs to
+	 */
+	public Lease<T> lease() {
+		return current;
+	}
+
+	public void set(T value) {
+		long stamp = lock.writeLock();
+		try {
+			current = new Lease<>(this, value, current.epoch + 1);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes the current resource, so that new readers fail fast and existing leases become stale.
+	 *
+	 * @return the resource that was removed, for the caller to shut down
+	 */
+	public T clear() {
+		long stamp = lock.writeLock();
+		try {
+			T old = current.value;
+			current = new Lease<>(this, null, current.epoch + 1);
+			return old;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Creates the resource if there isn't one. The supplier runs without holding the lock, so a
+	 * stop or restart doesn't wait for it; if one happens in the meantime, what the supplier made is
+	 * dropped.
+	 *
+	 * @return the resource, which may still be null if the supplier returned null or the resource
+	 *         was cleared while it ran
+	 */
+	public T computeIfAbsent(Supplier<? extends T> supplier) {
+		return computeIfAbsent(supplier, value -> {
+		});
+	}
+
+	/**
+	 * @param discard shuts down what the supplier made, if it is dropped
+	 * @see #computeIfAbsent(Supplier)
+	 */
+	public T computeIfAbsent(Supplier<? extends T> supplier, Consumer<? super T> discard) {
+		synchronized (computeLock) {
+			Lease<T> before = current;
+			if (before.value != null) {
+				return before.value;
+			}
+			T value = supplier.get();
+			if (value == null) {
+				return null;
+			}
+			T installed;
+			long stamp = lock.writeLock();
+			try {
+				if (current == before) {
+					current = new Lease<>(this, value, before.epoch + 1);
+					return value;
+				}
+				installed = current.value;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+			discard.accept(value);
+			return installed;
+		}
+	}
+
+	/**
+	 * A resource as it was when it was read.
+	 */
+	public static class Lease<T> {
+		private final LifecycleGuard<T> guard;
+		private final T value;
+		private final long epoch;
+
+		private Lease(LifecycleGuard<T> guard, T value, long epoch) {
+			this.guard = guard;
+			this.value = value;
+			this.epoch = epoch;
+		}
+
+		public T get() {
+			return value;
+		}
+
+		/**
+		 * @return whether the resource hasn't been replaced or removed since this lease was taken
+		 */
+		public boolean isValid() {
+			return value != null && guard.current == this;
+		}
+	}
+}
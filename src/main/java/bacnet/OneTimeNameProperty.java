@@ -11,9 +11,9 @@ public class OneTimeNameProperty extends HiddenProperty {
 	}
 	
 	@Override
-	public void updateValue(Encodable value) {
+	public boolean updateValue(Encodable value) {
 		device.unsubscribeProperty(this);
-		super.updateValue(value);
+		return super.updateValue(value);
 	}
 
 }
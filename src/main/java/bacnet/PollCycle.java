@@ -0,0 +1,120 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.ResponseConsumer;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Queue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One asynchronous pass over a device's poll batches. Keeps up to a fixed number of confirmed
+ * requests outstanding at once, sending the next batch as soon as a response (or failure) for an
+ * earlier one comes back.
+ */
+public class PollCycle {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PollCycle.class);
+
+	// Invoke IDs are a single octet, so a device can't have more requests than this in flight
+	static final int MAX_OUTSTANDING = 255;
+
+	private final PollPlanner planner;
+	private final RequestGovernor governor;
+	private final RequestGovernor.Priority priority;
+	private final LifecycleGuard.Lease<LocalDevice> localDevice;
+	private final LifecycleGuard.Lease<RemoteDevice> remoteDevice;
+	private final Queue<PollPlanner.Batch> pending;
+	private final int window;
+	private int outstanding = 0;
+
+	PollCycle(PollPlanner planner, RequestGovernor governor, RequestGovernor.Priority priority,
+			LifecycleGuard.Lease<LocalDevice> localDevice,
+			LifecycleGuard.Lease<RemoteDevice> remoteDevice,
+			Collection<PollPlanner.Batch> batches, int window) {
+		this.planner = planner;
+		this.governor = governor;
+		this.priority = priority;
+		this.localDevice = localDevice;
+		this.remoteDevice = remoteDevice;
+		this.pending = new ArrayDeque<>(batches);
+		this.window = Math.max(1, Math.min(window, MAX_OUTSTANDING));
+	}
+
+	void start() {
+		sendMore();
+	}
+
+	/**
+	 * @return whether all responses are in, or the connection or device was restarted since the
+	 *         cycle began, in which case whatever is still outstanding is abandoned
+	 */
+	synchronized boolean isDone() {
+		return (pending.isEmpty() && outstanding == 0) || !isCurrent();
+	}
+
+	private boolean isCurrent() {
+		return localDevice.isValid() && remoteDevice.isValid();
+	}
+
+	private void sendMore() {
+		while (true) {
+			PollPlanner.Batch batch;
+			synchronized (this) {
+				if (!isCurrent()) {
+					pending.clear();
+				}
+				if (outstanding >= window || pending.isEmpty()) {
+					return;
+				}
+				batch = pending.poll();
+				outstanding += 1;
+			}
+			send(batch);
+		}
+	}
+
+	private void send(PollPlanner.Batch batch) {
+		try {
+			governor.send(localDevice.get(), remoteDevice.get(), batch.request, priority, new ResponseConsumer() {
+				@Override
+				public void success(AcknowledgementService ack) {
+					try {
+						planner.dispatch(batch, ack);
+					} catch (Exception e) {
+						LOGGER.debug("", e);
+					}
+					completed();
+				}
+
+				@Override
+				public void fail(AckAPDU ack) {
+					LOGGER.debug("Poll request to device " + remoteDevice.get().getInstanceNumber() + " failed: " + ack);
+					planner.failed(batch, ack);
+					completed();
+				}
+
+				@Override
+				public void ex(BACnetException e) {
+					LOGGER.debug("", e);
+					planner.failed(batch, e);
+					completed();
+				}
+			});
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+			completed();
+		}
+	}
+
+	private void completed() {
+		synchronized (this) {
+			outstanding -= 1;
+		}
+		sendMore();
+	}
+}
@@ -0,0 +1,454 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.apdu.Abort;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.exception.AbortAPDUException;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.exception.ErrorAPDUException;
+import com.serotonin.bacnet4j.exception.ServiceTooBigException;
+import com.serotonin.bacnet4j.obj.ObjectProperties;
+import com.serotonin.bacnet4j.obj.PropertyTypeDefinition;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+import com.serotonin.bacnet4j.service.acknowledgement.ReadPropertyAck;
+import com.serotonin.bacnet4j.service.acknowledgement.ReadPropertyMultipleAck;
+import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
+import com.serotonin.bacnet4j.service.confirmed.ReadPropertyMultipleRequest;
+import com.serotonin.bacnet4j.service.confirmed.ReadPropertyRequest;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.ObjectPropertyReference;
+import com.serotonin.bacnet4j.type.constructed.PropertyReference;
+import com.serotonin.bacnet4j.type.constructed.ReadAccessResult;
+import com.serotonin.bacnet4j.type.constructed.ReadAccessResult.Result;
+import com.serotonin.bacnet4j.type.constructed.ReadAccessSpecification;
+import com.serotonin.bacnet4j.type.constructed.SequenceOf;
+import com.serotonin.bacnet4j.type.constructed.ServicesSupported;
+import com.serotonin.bacnet4j.type.enumerated.AbortReason;
+import com.serotonin.bacnet4j.type.enumerated.ErrorClass;
+import com.serotonin.bacnet4j.type.enumerated.Segmentation;
+import com.serotonin.bacnet4j.type.primitive.BitString;
+import com.serotonin.bacnet4j.type.primitive.CharacterString;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.Primitive;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Packs a device's subscribed property references into ReadPropertyMultiple requests that fit
+ * the remote device's APDU and segmentation limits. The resulting plan is cached and only
+ * rebuilt when the subscriptions change, the remote device changes, or a request turned out to
+ * be too big.
+ * <p>
+ * With adaptive polling enabled, each property is polled every Nth cycle, where N (its tier)
+ * doubles while the value stays the same and halves when it changes. Properties are batched
+ * together with others of the same tier.
+ */
+public class PollPlanner {
+
+	static final int DEFAULT_MAX_APDU = 480;
+	static final int MAX_SEGMENTS = 8;
+	static final int DEFAULT_MAX_REFERENCES = 20;
+	static final int SEGMENTED_MAX_REFERENCES = 200;
+
+	// Rough encoded sizes, in bytes, used to estimate request and response lengths
+	private static final int REQUEST_HEADER_SIZE = 5;
+	private static final int RESPONSE_HEADER_SIZE = 5;
+	private static final int OBJECT_SPEC_SIZE = 7;
+	private static final int PROPERTY_REF_SIZE = 3;
+	private static final int ARRAY_INDEX_SIZE = 3;
+	private static final int PROPERTY_RESULT_SIZE = 5;
+	private static final int PRIMITIVE_VALUE_SIZE = 6;
+	private static final int STRING_VALUE_SIZE = 66;
+	private static final int COLLECTION_VALUE_SIZE = 160;
+	private static final int OTHER_VALUE_SIZE = 32;
+
+	// Number of unchanged reads in a row after which a property is polled half as often
+	static final int BACKOFF_THRESHOLD = 3;
+
+	private volatile boolean dirty = true;
+	private RemoteDevice plannedFor = null;
+	private List<Batch> batches = Collections.emptyList();
+	// Most references the device has been seen to take in one request, or -1 if not yet limited
+	private int referenceLimit = -1;
+	private final Set<ObjectPropertyReference> isolated = new HashSet<>();
+	private final Map<BacnetProperty, Rate> rates = new ConcurrentHashMap<>();
+	private volatile boolean adaptive = false;
+	private volatile int maxTier = 1;
+
+	/**
+	 * Marks the cached plan as stale, so that it is rebuilt before the next poll.
+	 */
+	void invalidate() {
+		dirty = true;
+	}
+
+	/**
+	 * @param enabled whether to adapt how often each property is polled
+	 * @param maxTier the most poll cycles a property may go without being read
+	 */
+	void setAdaptive(boolean enabled, int maxTier) {
+		this.adaptive = enabled;
+		this.maxTier = Math.max(1, maxTier);
+		if (!enabled) {
+			rates.clear();
+		} else {
+			for (Rate rate : rates.values()) {
+				rate.tier = Math.min(rate.tier, this.maxTier);
+			}
+		}
+		dirty = true;
+	}
+
+	void forget(BacnetProperty prop) {
+		rates.remove(prop);
+		synchronized (this) {
+			isolated.remove(new ObjectPropertyReference(prop.oid, prop.pid));
+		}
+	}
+
+	/**
+	 * Returns the batches to send for one poll cycle, rebuilding them first if necessary. What was
+	 * learned about a device's limits and bad references is dropped when the device is found again.
+	 *
+	 * @param cycle a counter that goes up by one with every poll cycle
+	 */
+	synchronized List<Batch> getBatches(RemoteDevice d, Map<BacnetProperty, ObjectPropertyReference> subscribed,
+			long cycle) {
+		if (plannedFor != d) {
+			isolated.clear();
+			referenceLimit = -1;
+		}
+		if (dirty || plannedFor != d) {
+			dirty = false;
+			plannedFor = d;
+			batches = plan(d, new HashMap<>(subscribed));
+		}
+		if (!adaptive) {
+			return batches;
+		}
+		List<Batch> due = new ArrayList<>(batches.size());
+		for (Batch batch : batches) {
+			if (cycle % batch.tier == 0) {
+				due.add(batch);
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * Routes the values in an acknowledgement to their properties, and adjusts the poll rates of
+	 * those properties according to whether their values changed.
+	 */
+	void dispatch(Batch batch, AcknowledgementService ack) {
+		batch.dispatch(ack, this);
+	}
+
+	private void observe(BacnetProperty prop, boolean changed) {
+		if (!adaptive) {
+			return;
+		}
+		Rate rate = rates.computeIfAbsent(prop, k -> new Rate());
+		synchronized (rate) {
+			if (changed) {
+				rate.unchanged = 0;
+				if (rate.tier > 1) {
+					rate.tier = Math.max(1, rate.tier / 2);
+					dirty = true;
+				}
+			} else if (++rate.unchanged >= BACKOFF_THRESHOLD) {
+				rate.unchanged = 0;
+				if (rate.tier < maxTier) {
+					rate.tier = Math.min(maxTier, rate.tier * 2);
+					dirty = true;
+				}
+			}
+		}
+	}
+
+	private int getTier(BacnetProperty prop) {
+		if (!adaptive) {
+			return 1;
+		}
+		Rate rate = rates.get(prop);
+		return rate == null ? 1 : rate.tier;
+	}
+
+	/**
+	 * Called when a batch was rejected for being too large. Lowers the number of references that
+	 * go into a single request and schedules a rebuild.
+	 */
+	private synchronized void shrink(Batch batch) {
+		int size = batch.references.size();
+		if (size < 2) {
+			return;
+		}
+		if (referenceLimit < 0 || referenceLimit > size) {
+			referenceLimit = size;
+		}
+		referenceLimit = Math.max(1, referenceLimit * 3 / 4);
+		dirty = true;
+	}
+
+	/**
+	 * Called when a device answered a multi-property batch with an error about an object or
+	 * property. The batch's references are read one at a time from now on, so that a single bad
+	 * reference cannot spoil the rest. Other errors, such as the device being short of resources,
+	 * pass, so they don't split batches for good.
+	 */
+	private synchronized void isolate(Batch batch) {
+		if (batch.references.size() < 2) {
+			return;
+		}
+		isolated.addAll(batch.references);
+		dirty = true;
+	}
+
+	/**
+	 * Adjusts the plan after the device rejected a batch.
+	 */
+	void failed(Batch batch, AckAPDU ack) {
+		if (ack instanceof Abort) {
+			int reason = ((Abort) ack).getAbortReason();
+			if (reason == AbortReason.bufferOverflow.intValue()
+					|| reason == AbortReason.segmentationNotSupported.intValue()) {
+				shrink(batch);
+			}
+		} else if (ack instanceof com.serotonin.bacnet4j.apdu.Error && batch.isMultiple()) {
+			ErrorClass errorClass = ((com.serotonin.bacnet4j.apdu.Error) ack).getError().getErrorClassAndCode()
+					.getErrorClass();
+			if (ErrorClass.object.equals(errorClass) || ErrorClass.property.equals(errorClass)) {
+				isolate(batch);
+			}
+		}
+	}
+
+	/**
+	 * Adjusts the plan after a batch could not be sent or completed.
+	 */
+	void failed(Batch batch, BACnetException e) {
+		if (e instanceof ServiceTooBigException) {
+			shrink(batch);
+		} else if (e instanceof AbortAPDUException) {
+			failed(batch, ((AbortAPDUException) e).getApdu());
+		} else if (e instanceof ErrorAPDUException) {
+			failed(batch, ((ErrorAPDUException) e).getApdu());
+		}
+	}
+
+	private List<Batch> plan(RemoteDevice d, Map<BacnetProperty, ObjectPropertyReference> subscribed) {
+		Map<Integer, Map<BacnetProperty, ObjectPropertyReference>> byTier = new TreeMap<>();
+		for (Entry<BacnetProperty, ObjectPropertyReference> entry : subscribed.entrySet()) {
+			byTier.computeIfAbsent(getTier(entry.getKey()), k -> new HashMap<>())
+					.put(entry.getKey(), entry.getValue());
+		}
+		List<Batch> plan = new ArrayList<>();
+		for (Entry<Integer, Map<BacnetProperty, ObjectPropertyReference>> entry : byTier.entrySet()) {
+			for (Batch batch : pack(d, entry.getValue())) {
+				batch.tier = entry.getKey();
+				plan.add(batch);
+			}
+		}
+		return plan;
+	}
+
+	private List<Batch> pack(RemoteDevice d, Map<BacnetProperty, ObjectPropertyReference> subscribed) {
+		Map<ObjectIdentifier, Map<ObjectPropertyReference, List<BacnetProperty>>> byObject = new LinkedHashMap<>();
+		for (Entry<BacnetProperty, ObjectPropertyReference> entry : subscribed.entrySet()) {
+			ObjectPropertyReference opr = entry.getValue();
+			byObject.computeIfAbsent(opr.getObjectIdentifier(), k -> new LinkedHashMap<>())
+					.computeIfAbsent(opr, k -> new ArrayList<>(1)).add(entry.getKey());
+		}
+
+		List<Batch> plan = new ArrayList<>();
+		if (!supportsReadMultiple(d)) {
+			for (Map<ObjectPropertyReference, List<BacnetProperty>> refs : byObject.values()) {
+				for (Entry<ObjectPropertyReference, List<BacnetProperty>> entry : refs.entrySet()) {
+					plan.add(Batch.single(entry.getKey(), entry.getValue()));
+				}
+			}
+			return plan;
+		}
+
+		int maxApdu = d.getMaxAPDULengthAccepted();
+		if (maxApdu <= 0) {
+			maxApdu = DEFAULT_MAX_APDU;
+		}
+		Segmentation seg = d.getSegmentationSupported();
+		int requestBudget = (seg != null && seg.hasReceiveSegmentation()) ? maxApdu * MAX_SEGMENTS : maxApdu;
+		int responseBudget = (seg != null && seg.hasTransmitSegmentation()) ? maxApdu * MAX_SEGMENTS : maxApdu;
+		int maxRefs = getMaxReferences(d, seg);
+
+		BatchBuilder current = new BatchBuilder();
+		for (Entry<ObjectIdentifier, Map<ObjectPropertyReference, List<BacnetProperty>>> objEntry : byObject.entrySet()) {
+			ObjectIdentifier oid = objEntry.getKey();
+			for (Entry<ObjectPropertyReference, List<BacnetProperty>> entry : objEntry.getValue().entrySet()) {
+				ObjectPropertyReference opr = entry.getKey();
+				if (isolated.contains(opr)) {
+					plan.add(Batch.single(opr, entry.getValue()));
+					continue;
+				}
+				int requestSize = PROPERTY_REF_SIZE;
+				int responseSize = PROPERTY_RESULT_SIZE + estimateValueSize(opr);
+				if (opr.getPropertyArrayIndex() != null) {
+					requestSize += ARRAY_INDEX_SIZE;
+					responseSize += ARRAY_INDEX_SIZE;
+				}
+				int specSize = current.hasObject(oid) ? 0 : OBJECT_SPEC_SIZE;
+				if (!current.isEmpty() && (current.count >= maxRefs
+						|| current.requestSize + requestSize + specSize > requestBudget
+						|| current.responseSize + responseSize + specSize > responseBudget)) {
+					plan.add(current.build());
+					current = new BatchBuilder();
+					specSize = OBJECT_SPEC_SIZE;
+				}
+				current.add(oid, opr, entry.getValue(), requestSize + specSize, responseSize + specSize);
+			}
+		}
+		if (!current.isEmpty()) {
+			plan.add(current.build());
+		}
+		return plan;
+	}
+
+	private int getMaxReferences(RemoteDevice d, Segmentation seg) {
+		int max;
+		if (seg != null) {
+			max = d.getMaxReadMultipleReferences();
+		} else {
+			max = DEFAULT_MAX_REFERENCES;
+		}
+		if (max <= 0) {
+			max = seg != null && seg.hasTransmitSegmentation() ? SEGMENTED_MAX_REFERENCES : DEFAULT_MAX_REFERENCES;
+		}
+		if (referenceLimit > 0 && referenceLimit < max) {
+			max = referenceLimit;
+		}
+		return max;
+	}
+
+	static boolean supportsReadMultiple(RemoteDevice d) {
+		ServicesSupported services = d.getServicesSupported();
+		return services != null && services.isReadPropertyMultiple();
+	}
+
+	private static int estimateValueSize(ObjectPropertyReference opr) {
+		PropertyTypeDefinition def = ObjectProperties.getPropertyTypeDefinition(opr.getPropertyIdentifier());
+		if (def == null) {
+			return OTHER_VALUE_SIZE;
+		}
+		if (def.isCollection() && opr.getPropertyArrayIndex() == null) {
+			return COLLECTION_VALUE_SIZE;
+		}
+		Class<? extends Encodable> clazz = def.getClazz();
+		if (CharacterString.class.isAssignableFrom(clazz)) {
+			return STRING_VALUE_SIZE;
+		} else if (BitString.class.isAssignableFrom(clazz) || Primitive.class.isAssignableFrom(clazz)) {
+			return PRIMITIVE_VALUE_SIZE;
+		}
+		return OTHER_VALUE_SIZE;
+	}
+
+	private static class BatchBuilder {
+		private final Map<ObjectIdentifier, List<PropertyReference>> specs = new LinkedHashMap<>();
+		private final Map<ObjectPropertyReference, List<BacnetProperty>> targets = new LinkedHashMap<>();
+		private int count = 0;
+		private int requestSize = REQUEST_HEADER_SIZE;
+		private int responseSize = RESPONSE_HEADER_SIZE;
+
+		boolean isEmpty() {
+			return count == 0;
+		}
+
+		boolean hasObject(ObjectIdentifier oid) {
+			return specs.containsKey(oid);
+		}
+
+		void add(ObjectIdentifier oid, ObjectPropertyReference opr, List<BacnetProperty> props, int reqSize, int respSize) {
+			specs.computeIfAbsent(oid, k -> new ArrayList<>())
+					.add(new PropertyReference(opr.getPropertyIdentifier(), opr.getPropertyArrayIndex()));
+			targets.put(opr, props);
+			count += 1;
+			requestSize += reqSize;
+			responseSize += respSize;
+		}
+
+		Batch build() {
+			if (count == 1) {
+				Entry<ObjectPropertyReference, List<BacnetProperty>> entry = targets.entrySet().iterator().next();
+				return Batch.single(entry.getKey(), entry.getValue());
+			}
+			List<ReadAccessSpecification> list = new ArrayList<>(specs.size());
+			for (Entry<ObjectIdentifier, List<PropertyReference>> entry : specs.entrySet()) {
+				list.add(new ReadAccessSpecification(entry.getKey(), new SequenceOf<>(entry.getValue())));
+			}
+			return new Batch(new ReadPropertyMultipleRequest(new SequenceOf<>(list)), targets);
+		}
+	}
+
+	private static class Rate {
+		int tier = 1;
+		int unchanged = 0;
+	}
+
+	/**
+	 * One pre-built request of a poll cycle, along with the properties its results belong to.
+	 */
+	public static class Batch {
+		final ConfirmedRequestService request;
+		final Map<ObjectPropertyReference, List<BacnetProperty>> targets;
+		final List<ObjectPropertyReference> references;
+		int tier = 1;
+
+		private Batch(ConfirmedRequestService request, Map<ObjectPropertyReference, List<BacnetProperty>> targets) {
+			this.request = request;
+			this.targets = targets;
+			this.references = new ArrayList<>(targets.keySet());
+		}
+
+		static Batch single(ObjectPropertyReference opr, List<BacnetProperty> props) {
+			Map<ObjectPropertyReference, List<BacnetProperty>> targets = new HashMap<>(2);
+			targets.put(opr, props);
+			return new Batch(new ReadPropertyRequest(opr.getObjectIdentifier(), opr.getPropertyIdentifier(),
+					opr.getPropertyArrayIndex()), targets);
+		}
+
+		boolean isMultiple() {
+			return request instanceof ReadPropertyMultipleRequest;
+		}
+
+		private void dispatch(AcknowledgementService ack, PollPlanner planner) {
+			if (ack instanceof ReadPropertyAck) {
+				ReadPropertyAck rpa = (ReadPropertyAck) ack;
+				update(new ObjectPropertyReference(rpa.getEventObjectIdentifier(), rpa.getPropertyIdentifier(),
+						rpa.getPropertyArrayIndex()), rpa.getValue(), planner);
+			} else if (ack instanceof ReadPropertyMultipleAck) {
+				for (ReadAccessResult objectResult : ((ReadPropertyMultipleAck) ack).getListOfReadAccessResults()) {
+					ObjectIdentifier oid = objectResult.getObjectIdentifier();
+					for (Result result : objectResult.getListOfResults()) {
+						update(new ObjectPropertyReference(oid, result.getPropertyIdentifier(),
+								result.getPropertyArrayIndex()), result.getReadResult().getDatum(), planner);
+					}
+				}
+			}
+		}
+
+		private void update(ObjectPropertyReference opr, Encodable value, PollPlanner planner) {
+			List<BacnetProperty> props = targets.get(opr);
+			if (props == null) {
+				return;
+			}
+			for (BacnetProperty prop : props) {
+				planner.observe(prop, prop.updateValue(value));
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package bacnet;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the polls of all devices on a connection. Each device gets a fixed phase offset within
+ * its interval so that devices don't all fire at once, and a small random jitter on top of that.
+ * Due polls are handed to a bounded pool of workers, which always picks the poll that is furthest
+ * behind schedule first.
+ */
+public class PollingScheduler {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PollingScheduler.class);
+
+	// Fraction of the interval by which a single poll may be moved earlier or later
+	private static final double JITTER = 0.05;
+
+	private final String name;
+	private final ScheduledExecutorService timer;
+	private final ThreadPoolExecutor workers;
+
+	PollingScheduler(String name, ScheduledExecutorService timer, int threads) {
+		this.name = name;
+		this.timer = timer;
+		int n = Math.max(1, threads);
+		this.workers = Utils.createDaemonExecutor("bacnet-poll-" + name + "-", n, new PriorityBlockingQueue<>());
+	}
+
+	void setThreads(int threads) {
+		int n = Math.max(1, threads);
+		if (n > workers.getMaximumPoolSize()) {
+			workers.setMaximumPoolSize(n);
+			workers.setCorePoolSize(n);
+		} else {
+			workers.setCorePoolSize(n);
+			workers.setMaximumPoolSize(n);
+		}
+	}
+
+	/**
+	 * Starts polling at a fixed rate.
+	 *
+	 * @param key identifies the poller, and determines where in the interval it is placed
+	 * @param intervalMillis how often to poll
+	 * @param poll the work to do on each poll
+	 * @param lagListener told, on each poll, how many milliseconds late it started
+	 * @return a handle for cancelling the polling
+	 */
+	Task schedule(int key, long intervalMillis, Runnable poll, LongConsumer lagListener) {
+		long interval = Math.max(1, intervalMillis);
+		long phase = Math.floorMod(mix(key), interval);
+		Task task = new Task(interval, poll, lagListener);
+		task.deadline = System.currentTimeMillis() + phase;
+		task.arm();
+		return task;
+	}
+
+	/**
+	 * Spreads consecutive keys, such as instance numbers, evenly over the interval.
+	 */
+	private static long mix(int key) {
+		return ((key & 0xFFFFFFFFL) * 0x9E3779B9L) & 0xFFFFFFFFL;
+	}
+
+	public class Task implements Runnable, Comparable<Task> {
+		private final long interval;
+		private final Runnable poll;
+		private final LongConsumer lagListener;
+		private volatile long deadline;
+		private volatile boolean cancelled = false;
+
+		private Task(long interval, Runnable poll, LongConsumer lagListener) {
+			this.interval = interval;
+			this.poll = poll;
+			this.lagListener = lagListener;
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		private void arm() {
+			if (cancelled) {
+				return;
+			}
+			long jitter = (long) (interval * JITTER * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+			long delay = Math.max(0, deadline + jitter - System.currentTimeMillis());
+			try {
+				timer.schedule(() -> enqueue(), delay, TimeUnit.MILLISECONDS);
+			} catch (Exception e) {
+				LOGGER.debug("", e);
+			}
+		}
+
+		private void enqueue() {
+			if (cancelled) {
+				return;
+			}
+			try {
+				workers.execute(this);
+			} catch (Exception e) {
+				LOGGER.debug("", e);
+			}
+		}
+
+		@Override
+		public void run() {
+			if (cancelled) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			lagListener.accept(Math.max(0, now - deadline));
+			try {
+				poll.run();
+			} catch (Exception e) {
+				LOGGER.debug("", e);
+			}
+			long next = deadline + interval;
+			now = System.currentTimeMillis();
+			if (next <= now) {
+				// Skip the polls we missed rather than firing them back to back
+				long missed = (now - next) / interval + 1;
+				next += missed * interval;
+				LOGGER.debug("Polling on " + name + " is behind schedule by " + missed + " interval(s)");
+			}
+			deadline = next;
+			arm();
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			return Long.compare(deadline, other.deadline);
+		}
+	}
+}
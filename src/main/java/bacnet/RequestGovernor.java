@@ -0,0 +1,490 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.ResponseConsumer;
+import com.serotonin.bacnet4j.ServiceFuture;
+import com.serotonin.bacnet4j.apdu.Abort;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.apdu.Error;
+import com.serotonin.bacnet4j.apdu.Reject;
+import com.serotonin.bacnet4j.exception.AbortAPDUException;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.exception.BACnetTimeoutException;
+import com.serotonin.bacnet4j.exception.ErrorAPDUException;
+import com.serotonin.bacnet4j.exception.RejectAPDUException;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+import com.serotonin.bacnet4j.service.acknowledgement.ReadPropertyAck;
+import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
+import com.serotonin.bacnet4j.service.confirmed.ReadPropertyRequest;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.SequenceOf;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Paces the confirmed requests sent to one device. Requests wait in line until fewer than the
+ * maximum number are awaiting a response, and, if a rate is set, until a token bucket holding up
+ * to a second's worth of requests has a token for them, so that polls, writes, discovery and
+ * history reads together can't overwhelm a small controller. Each request has a priority, and the
+ * most urgent one waiting goes first. A request that has waited a second moves up one priority,
+ * but no further and never level with commands, so that a busy class can't hold the one below it
+ * back indefinitely, while a backlog of stale requests can't get ahead of a fresh write. While
+ * the device's circuit breaker is open, requests fail without being sent, and requests made on a
+ * connection that has since been restarted fail rather than go to the old one. A caller that
+ * gives up waiting takes its request out of the queue if it hasn't been sent yet.
+ */
+public class RequestGovernor {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RequestGovernor.class);
+
+	// How long a request waits to be treated as if it had the next higher priority, at most
+	static final long AGING_MILLIS = 1000;
+	// Extra time a caller waits for a response, on top of the connection's timeout and retries
+	private static final long RESPONSE_MARGIN_MILLIS = 5000;
+
+	/**
+	 * The kinds of request, most urgent first.
+	 */
+	enum Priority {
+		COMMAND("Command"), INTERACTIVE("Interactive"), COV("COV"), POLL("Poll"), BACKGROUND("Background");
+
+		final String label;
+
+		Priority(String label) {
+			this.label = label;
+		}
+	}
+
+	private final BacnetConn conn;
+	private final ScheduledExecutorService stpe;
+	private final CircuitBreaker breaker;
+	private final Map<Priority, Queue<Pending>> queues = new EnumMap<>(Priority.class);
+	private int maxOutstanding = 1;
+	// Requests per second, or 0 for no limit
+	private double rate = 0;
+	private double tokens = 0;
+	private long lastRefill = System.nanoTime();
+	private int outstanding = 0;
+	private boolean pumpScheduled = false;
+	private final long[] waitTotalMillis = new long[Priority.values().length];
+	private final long[] waitCount = new long[Priority.values().length];
+	private int queued = 0;
+	// Changes whenever the queue is cleared, so that responses to requests sent before then don't
+	// free slots that have already been given back
+	private long generation = 0;
+
+	RequestGovernor(BacnetConn conn, CircuitBreaker breaker) {
+		this.conn = conn;
+		this.stpe = conn.getStpe();
+		this.breaker = breaker;
+		for (Priority priority : Priority.values()) {
+			queues.put(priority, new ArrayDeque<>());
+		}
+	}
+
+	synchronized void setLimits(int maxOutstanding, double rate) {
+		this.maxOutstanding = Math.max(1, maxOutstanding);
+		this.rate = Math.max(0, rate);
+		this.tokens = Math.min(tokens, getBurst());
+	}
+
+	/**
+	 * Sends the request once the limits allow it.
+	 */
+	void send(LocalDevice ld, RemoteDevice d, ConfirmedRequestService request, Priority priority,
+			ResponseConsumer consumer) {
+		enqueue(ld, d, request, priority, consumer);
+	}
+
+	/**
+	 * Sends the request once the limits allow it, for callers that wait for the response.
+	 */
+	ServiceFuture send(LocalDevice ld, RemoteDevice d, ConfirmedRequestService request, Priority priority) {
+		GovernedFuture future = new GovernedFuture(
+				(long) conn.timeout * (conn.retries + 1) + RESPONSE_MARGIN_MILLIS);
+		future.setPending(enqueue(ld, d, request, priority, future));
+		return future;
+	}
+
+	/**
+	 * @return the queued request, or null if it was refused straight away
+	 */
+	private Pending enqueue(LocalDevice ld, RemoteDevice d, ConfirmedRequestService request, Priority priority,
+			ResponseConsumer consumer) {
+		if (!breaker.isClosed()) {
+			skip(consumer);
+			return null;
+		}
+		Pending pending = new Pending(ld, d, request, priority, consumer);
+		synchronized (this) {
+			queues.get(priority).add(pending);
+			queued += 1;
+		}
+		pump();
+		return pending;
+	}
+
+	/**
+	 * Takes a request out of the queue if it hasn't been sent yet, e.g. because its caller has
+	 * given up waiting for it.
+	 *
+	 * @return whether the request was still queued
+	 */
+	private synchronized boolean cancel(Pending pending) {
+		if (queues.get(pending.priority).remove(pending)) {
+			queued -= 1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Fails a request that isn't sent because the circuit breaker is open. Each request is
+	 * counted once, as it fails here.
+	 */
+	private void skip(ResponseConsumer consumer) {
+		breaker.countSkipped();
+		consumer.ex(new BACnetException("Device not responding"));
+	}
+
+	/**
+	 * Reads a property, waiting for the response.
+	 *
+	 * @return the value, or null if it couldn't be read
+	 */
+	Encodable readProperty(LocalDevice ld, RemoteDevice d, ObjectIdentifier oid, PropertyIdentifier pid,
+			UnsignedInteger propertyArrayIndex, Priority priority) {
+		try {
+			try {
+				ReadPropertyAck ack = send(ld, d, new ReadPropertyRequest(oid, pid, propertyArrayIndex), priority)
+						.get();
+				return ack.getValue();
+			} catch (AbortAPDUException e) {
+				if (propertyArrayIndex != null) {
+					throw e;
+				}
+				// Most likely an array too big to send unsegmented, so read it an element at a time
+				return readByElement(ld, d, oid, pid, priority);
+			}
+		} catch (BACnetException e) {
+			LOGGER.debug("", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads an array's length, then all of its elements, each element read waiting in line like
+	 * any other request.
+	 */
+	private Encodable readByElement(LocalDevice ld, RemoteDevice d, ObjectIdentifier oid, PropertyIdentifier pid,
+			Priority priority) throws BACnetException {
+		ReadPropertyAck lengthAck = send(ld, d, new ReadPropertyRequest(oid, pid, new UnsignedInteger(0)), priority)
+				.get();
+		if (!(lengthAck.getValue() instanceof UnsignedInteger)) {
+			return null;
+		}
+		int length = ((UnsignedInteger) lengthAck.getValue()).intValue();
+		List<ServiceFuture> futures = new ArrayList<>(length);
+		for (int i = 1; i <= length; i++) {
+			futures.add(send(ld, d, new ReadPropertyRequest(oid, pid, new UnsignedInteger(i)), priority));
+		}
+		List<Encodable> elements = new ArrayList<>(length);
+		for (ServiceFuture future : futures) {
+			ReadPropertyAck ack = future.get();
+			elements.add(ack.getValue());
+		}
+		return new SequenceOf<>(elements);
+	}
+
+	/**
+	 * Fails every request still waiting to be sent, and forgets the ones awaiting a response, e.g.
+	 * when the device or its connection stops. Requests sent to a LocalDevice that has been
+	 * terminated may never get a response, so their slots are given back here.
+	 */
+	void clear() {
+		List<Pending> dropped = new ArrayList<>();
+		synchronized (this) {
+			for (Queue<Pending> queue : queues.values()) {
+				dropped.addAll(queue);
+				queue.clear();
+			}
+			queued = 0;
+			outstanding = 0;
+			generation += 1;
+		}
+		for (Pending pending : dropped) {
+			pending.consumer.ex(new BACnetException("Device stopped"));
+		}
+	}
+
+	synchronized int getQueueDepth() {
+		return queued;
+	}
+
+	synchronized int getOutstanding() {
+		return outstanding;
+	}
+
+	/**
+	 * @return the average time requests of the given priority waited in line since the last call,
+	 *         in milliseconds
+	 */
+	synchronized long takeAverageWait(Priority priority) {
+		int i = priority.ordinal();
+		long avg = waitCount[i] > 0 ? waitTotalMillis[i] / waitCount[i] : 0;
+		waitTotalMillis[i] = 0;
+		waitCount[i] = 0;
+		return avg;
+	}
+
+	private double getBurst() {
+		return Math.max(1, rate);
+	}
+
+	private void pump() {
+		while (true) {
+			Pending next;
+			long gen;
+			synchronized (this) {
+				if (queued == 0 || outstanding >= maxOutstanding) {
+					return;
+				}
+				if (rate > 0) {
+					long now = System.nanoTime();
+					tokens = Math.min(getBurst(), tokens + (now - lastRefill) * rate / 1e9);
+					lastRefill = now;
+					if (tokens < 1) {
+						schedulePump((long) Math.ceil((1 - tokens) * 1000 / rate));
+						return;
+					}
+					tokens -= 1;
+				}
+				next = poll();
+				queued -= 1;
+				outstanding += 1;
+				next.sentAt = System.currentTimeMillis();
+				waitTotalMillis[next.priority.ordinal()] += System.currentTimeMillis() - next.queuedAt;
+				waitCount[next.priority.ordinal()] += 1;
+				gen = generation;
+			}
+			dispatch(next, gen);
+		}
+	}
+
+	/**
+	 * Takes the request to send next, i.e. the one whose priority, raised for the time it has
+	 * waited, is highest. Must be called while holding the lock, with at least one request queued.
+	 */
+	private Pending poll() {
+		long now = System.currentTimeMillis();
+		Queue<Pending> best = null;
+		int bestLevel = 0;
+		long bestQueuedAt = 0;
+		for (Queue<Pending> queue : queues.values()) {
+			Pending head = queue.peek();
+			if (head == null) {
+				continue;
+			}
+			int level = head.priority.ordinal();
+			if (level > Priority.INTERACTIVE.ordinal() && now - head.queuedAt >= AGING_MILLIS) {
+				level -= 1;
+			}
+			if (best == null || level < bestLevel || (level == bestLevel && head.queuedAt < bestQueuedAt)) {
+				best = queue;
+				bestLevel = level;
+				bestQueuedAt = head.queuedAt;
+			}
+		}
+		return best.poll();
+	}
+
+	/**
+	 * Must be called while holding the lock.
+	 */
+	private void schedulePump(long delayMillis) {
+		if (pumpScheduled) {
+			return;
+		}
+		pumpScheduled = true;
+		try {
+			stpe.schedule(() -> {
+				synchronized (this) {
+					pumpScheduled = false;
+				}
+				pump();
+			}, Math.max(1, delayMillis), TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+			pumpScheduled = false;
+		}
+	}
+
+	private void dispatch(Pending pending, long gen) {
+		if (conn.localDevice.get() != pending.ld) {
+			// The connection was restarted while the request was waiting
+			release(gen);
+			pending.consumer.ex(new BACnetException("Connection restarted"));
+			return;
+		}
+		if (!breaker.isClosed()) {
+			// The breaker opened while the request was waiting
+			release(gen);
+			skip(pending.consumer);
+			return;
+		}
+		try {
+			pending.ld.send(pending.d, pending.request, new ResponseConsumer() {
+				@Override
+				public void success(AcknowledgementService ack) {
+					breaker.succeeded();
+					completed(gen);
+					pending.consumer.success(ack);
+				}
+
+				@Override
+				public void fail(AckAPDU ack) {
+					breaker.succeeded();
+					completed(gen);
+					pending.consumer.fail(ack);
+				}
+
+				@Override
+				public void ex(BACnetException e) {
+					breaker.failed(e);
+					completed(gen);
+					pending.consumer.ex(e);
+				}
+			});
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+			release(gen);
+			pending.consumer.ex(new BACnetException(e));
+		}
+	}
+
+	private void completed(long gen) {
+		release(gen);
+		pump();
+	}
+
+	/**
+	 * Frees the request's slot without sending more, for use within pump().
+	 */
+	private synchronized void release(long gen) {
+		if (gen == generation) {
+			outstanding -= 1;
+		}
+	}
+
+	private static class Pending {
+		final LocalDevice ld;
+		final RemoteDevice d;
+		final ConfirmedRequestService request;
+		final Priority priority;
+		final ResponseConsumer consumer;
+		final long queuedAt = System.currentTimeMillis();
+		// When the request was taken from the queue to be sent, or 0 while it is still queued
+		volatile long sentAt = 0;
+
+		Pending(LocalDevice ld, RemoteDevice d, ConfirmedRequestService request, Priority priority,
+				ResponseConsumer consumer) {
+			this.ld = ld;
+			this.d = d;
+			this.request = request;
+			this.priority = priority;
+			this.consumer = consumer;
+		}
+	}
+
+	/**
+	 * Holds the response to a request for a caller that waits for it, throwing the same
+	 * exceptions BACnet4J's own futures do.
+	 */
+	/**
+	 * Waits for the response for up to the given time after the request was sent. If the request
+	 * is still queued when the same time has passed since it was made, it is taken out of the queue
+	 * rather than sent after the caller has given up on it.
+	 */
+	private class GovernedFuture implements ServiceFuture, ResponseConsumer {
+		private final long timeoutMillis;
+		private Pending pending;
+		private AcknowledgementService ack;
+		private BACnetException ex;
+		private boolean done = false;
+
+		GovernedFuture(long timeoutMillis) {
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		synchronized void setPending(Pending pending) {
+			this.pending = pending;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public synchronized <T extends AcknowledgementService> T get() throws BACnetException {
+			long start = System.currentTimeMillis();
+			while (!done) {
+				long sentAt = pending == null ? 0 : pending.sentAt;
+				long remaining = (sentAt > 0 ? sentAt : start) + timeoutMillis - System.currentTimeMillis();
+				if (remaining <= 0) {
+					if (sentAt > 0 || pending == null || cancel(pending)) {
+						throw new BACnetTimeoutException("No response within " + timeoutMillis + " ms");
+					}
+					// Sent just now, so wait for the response from here
+					continue;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new BACnetException(e);
+				}
+			}
+			if (ex != null) {
+				throw ex;
+			}
+			return (T) ack;
+		}
+
+		@Override
+		public synchronized void success(AcknowledgementService ack) {
+			this.ack = ack;
+			done = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void fail(AckAPDU ack) {
+			if (ack instanceof Error) {
+				ex = new ErrorAPDUException((Error) ack);
+			} else if (ack instanceof Reject) {
+				ex = new RejectAPDUException((Reject) ack);
+			} else if (ack instanceof Abort) {
+				ex = new AbortAPDUException((Abort) ack);
+			} else {
+				ex = new BACnetException("Request failed: " + ack);
+			}
+			done = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void ex(BACnetException e) {
+			ex = e;
+			done = true;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,450 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.CompleteHandler;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.dsa.iot.historian.utils.QueryData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a copy of a trend or event log's records on disk, so that history queries don't have to
+ * read the log from the device each time. Mirroring starts with the first history query on the
+ * log. From then on, new records are pulled in by sequence number in the background, a few logs
+ * at a time, and before a query that reaches past the newest record held. Each record is
+ * appended to a file as its timestamp, sequence number and value; the timestamps and file offsets
+ * are kept in memory, sorted by time, so that a query can find where to start by binary search.
+ */
+public class TrendLogMirror {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TrendLogMirror.class);
+
+	static final String MIRROR_DIR = "bacnet-history";
+	static final long HARVEST_INTERVAL_MINUTES = 5;
+	// Queries don't pull in records more often than this
+	private static final long MIN_HARVEST_INTERVAL_MILLIS = 10000;
+	// Most records held; once half as many again have built up, the oldest are dropped
+	static final int MAX_RECORDS = 200000;
+	private static final int INITIAL_CAPACITY = 1024;
+	// Records read from the file at a time while answering a query
+	private static final int QUERY_CHUNK = 1000;
+	private static final int HARVEST_THREADS = 2;
+
+	// Background harvests of all logs share these threads, so only a few read from devices at once
+	private static final ThreadPoolExecutor harvesters = Utils.createDaemonExecutor("bacnet-history-",
+			HARVEST_THREADS, new LinkedBlockingQueue<>());
+
+	/**
+	 * Turns the device's log records into what is stored and returned by queries.
+	 */
+	interface RecordConverter {
+		/**
+		 * @return the time of the record, or -1 if it has none
+		 */
+		long getTimestamp(Encodable record);
+
+		/**
+		 * @return the value to store, or null to skip the record
+		 */
+		Value getValue(Encodable record);
+	}
+
+	private final BacnetDevice device;
+	private final ObjectIdentifier oid;
+	private final RecordConverter converter;
+	private final Object harvestLock = new Object();
+	private RandomAccessFile file;
+	private long[] times = new long[INITIAL_CAPACITY];
+	private long[] offsets = new long[INITIAL_CAPACITY];
+	private int size = 0;
+	// Records dropped from the front of the file since it was opened
+	private long trimmed = 0;
+	private long lastSequenceNumber = -1;
+	private volatile long lastHarvest = 0;
+	private ScheduledFuture<?> harvestFuture;
+	private final AtomicBoolean harvestQueued = new AtomicBoolean();
+	private boolean stopped = false;
+
+	TrendLogMirror(BacnetDevice device, ObjectIdentifier oid, RecordConverter converter) {
+		this.device = device;
+		this.oid = oid;
+		this.converter = converter;
+	}
+
+	/**
+	 * Loads what was mirrored before, and starts pulling in new records periodically. The first
+	 * background harvest is put off by a random part of the interval, so that the logs queried
+	 * together don't all come due together.
+	 *
+	 * @return whether the mirror is open
+	 */
+	private synchronized boolean start() {
+		if (file != null || stopped) {
+			return file != null;
+		}
+		try {
+			File f = getFile();
+			File dir = f.getParentFile();
+			if (dir != null) {
+				dir.mkdirs();
+			}
+			load(f);
+			file = new RandomAccessFile(f, "rw");
+		} catch (IOException e) {
+			LOGGER.debug("", e);
+			return false;
+		}
+		long interval = TimeUnit.MINUTES.toMillis(HARVEST_INTERVAL_MINUTES);
+		try {
+			harvestFuture = device.conn.getStpe().scheduleWithFixedDelay(() -> queueHarvest(),
+					interval + ThreadLocalRandom.current().nextLong(interval), interval, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+		}
+		return true;
+	}
+
+	private void queueHarvest() {
+		if (!harvestQueued.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			harvesters.execute(() -> {
+				harvestQueued.set(false);
+				harvest();
+			});
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+			harvestQueued.set(false);
+		}
+	}
+
+	/**
+	 * Stops harvesting, and deletes the mirrored records if asked to.
+	 */
+	synchronized void stop(boolean delete) {
+		stopped = true;
+		if (harvestFuture != null) {
+			harvestFuture.cancel(false);
+			harvestFuture = null;
+		}
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				LOGGER.debug("", e);
+			}
+			file = null;
+		}
+		size = 0;
+		lastSequenceNumber = -1;
+		if (delete) {
+			getFile().delete();
+		}
+	}
+
+	/**
+	 * Hands the records between the two times to the handler, pulling in new ones from the device
+	 * first if the query reaches past the newest record held. Records are read from the file a
+	 * chunk at a time, and handed over without holding the lock, so a slow handler doesn't hold up
+	 * harvesting.
+	 *
+	 * @return false if the mirror can't be opened, in which case the log has to be read from the
+	 *         device
+	 */
+	boolean query(long from, long to, CompleteHandler<QueryData> handler) {
+		if (!start()) {
+			return false;
+		}
+		if (to >= getLastTime() && System.currentTimeMillis() - lastHarvest >= MIN_HARVEST_INTERVAL_MILLIS) {
+			harvest();
+		}
+		long next;
+		synchronized (this) {
+			if (file == null) {
+				return false;
+			}
+			next = trimmed + lowerBound(from);
+		}
+		List<QueryData> chunk = new ArrayList<>(QUERY_CHUNK);
+		while (true) {
+			synchronized (this) {
+				if (file == null) {
+					break;
+				}
+				// Records trimmed since the last chunk are skipped
+				int i = (int) Math.max(0, next - trimmed);
+				for (; i < size && times[i] <= to && chunk.size() < QUERY_CHUNK; i++) {
+					QueryData qd = readEntry(i);
+					if (qd != null) {
+						chunk.add(qd);
+					}
+				}
+				next = trimmed + i;
+				if (chunk.isEmpty() && (i >= size || times[i] > to)) {
+					break;
+				}
+			}
+			for (QueryData qd : chunk) {
+				handler.handle(qd);
+			}
+			chunk.clear();
+		}
+		return true;
+	}
+
+	QueryData queryFirst() {
+		if (!start()) {
+			return null;
+		}
+		synchronized (this) {
+			return size > 0 ? readEntry(0) : null;
+		}
+	}
+
+	QueryData queryLast() {
+		if (!start()) {
+			return null;
+		}
+		synchronized (this) {
+			return size > 0 ? readEntry(size - 1) : null;
+		}
+	}
+
+	/**
+	 * Reads the records the device has added since the newest one held.
+	 */
+	void harvest() {
+		synchronized (harvestLock) {
+			lastHarvest = System.currentTimeMillis();
+			Encodable enc = Utils.readProperty(device.conn, device, oid, PropertyIdentifier.recordCount, null,
+					RequestGovernor.Priority.BACKGROUND);
+			if (!(enc instanceof UnsignedInteger)) {
+				return;
+			}
+			int count = ((UnsignedInteger) enc).intValue();
+			long lastSeq;
+			long lastTime;
+			synchronized (this) {
+				if (file == null) {
+					return;
+				}
+				lastSeq = lastSequenceNumber;
+				lastTime = size > 0 ? times[size - 1] : -1;
+			}
+			// Records arrive on the transport's thread, so they're only collected there, and written
+			// to disk here once the read is over
+			Queue<Harvested> harvested = new ConcurrentLinkedQueue<>();
+			TrendLogReader reader = new TrendLogReader(device, oid, (seq, record) -> {
+				harvested.add(new Harvested(seq, record));
+				return true;
+			});
+			if (lastSeq >= 0 && !wasReset(lastSeq)) {
+				reader.readFromSequence(lastSeq + 1, count);
+			} else {
+				// Nothing held, or the device started its sequence numbers over, so go by time
+				reader.readFromTime(lastTime + 1, count);
+			}
+			Harvested h;
+			while ((h = harvested.poll()) != null) {
+				append(h.seq, h.record);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the log's sequence numbers have gone back below the given one, which they
+	 *         do when the log is cleared
+	 */
+	private boolean wasReset(long sequenceNumber) {
+		Encodable enc = Utils.readProperty(device.conn, device, oid, PropertyIdentifier.totalRecordCount, null,
+				RequestGovernor.Priority.BACKGROUND);
+		return enc instanceof UnsignedInteger && ((UnsignedInteger) enc).longValue() < sequenceNumber;
+	}
+
+	private synchronized void append(long seq, Encodable record) {
+		if (file == null) {
+			return;
+		}
+		long ts = converter.getTimestamp(record);
+		Value value = ts >= 0 ? converter.getValue(record) : null;
+		if (seq >= 0) {
+			lastSequenceNumber = Math.max(lastSequenceNumber, seq);
+		}
+		if (value == null || value.getMap() == null || (size > 0 && ts < times[size - 1])) {
+			// Records are kept in time order, so one from before the newest held is left out
+			return;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			byte[] data = value.getMap().encode();
+			out.writeLong(ts);
+			out.writeLong(seq);
+			out.writeInt(data.length);
+			out.write(data);
+			long offset = file.length();
+			file.seek(offset);
+			file.write(bytes.toByteArray());
+			add(ts, offset);
+		} catch (IOException e) {
+			LOGGER.debug("", e);
+			return;
+		}
+		if (size >= MAX_RECORDS + MAX_RECORDS / 2) {
+			trim();
+		}
+	}
+
+	private void add(long ts, long offset) {
+		if (size == times.length) {
+			times = Arrays.copyOf(times, size * 2);
+			offsets = Arrays.copyOf(offsets, size * 2);
+		}
+		times[size] = ts;
+		offsets[size] = offset;
+		size++;
+	}
+
+	/**
+	 * @return the index of the first record at or after the given time
+	 */
+	private int lowerBound(long ts) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (times[mid] < ts) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private synchronized long getLastTime() {
+		return size > 0 ? times[size - 1] : Long.MIN_VALUE;
+	}
+
+	private QueryData readEntry(int index) {
+		try {
+			file.seek(offsets[index]);
+			long ts = file.readLong();
+			file.readLong(); // sequence number
+			byte[] data = new byte[file.readInt()];
+			file.readFully(data);
+			return new QueryData(new Value(new JsonObject(new String(data, StandardCharsets.UTF_8))), ts);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.debug("", e);
+			return null;
+		}
+	}
+
+	private void load(File f) throws IOException {
+		size = 0;
+		lastSequenceNumber = -1;
+		if (!f.exists()) {
+			return;
+		}
+		long offset = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			while (true) {
+				long ts = in.readLong();
+				long seq = in.readLong();
+				int length = in.readInt();
+				in.readFully(new byte[length]);
+				add(ts, offset);
+				lastSequenceNumber = Math.max(lastSequenceNumber, seq);
+				offset += 20 + length;
+			}
+		} catch (EOFException e) {
+			// A record cut short by a crash is dropped along with the rest of the file
+			try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+				raf.setLength(offset);
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the file with only the newest MAX_RECORDS records.
+	 */
+	private void trim() {
+		File f = getFile();
+		File tmp = new File(f.getPath() + ".tmp");
+		try {
+			int start = size - MAX_RECORDS;
+			long from = offsets[start];
+			try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+				byte[] buf = new byte[65536];
+				file.seek(from);
+				int n;
+				while ((n = file.read(buf)) > 0) {
+					out.write(buf, 0, n);
+				}
+			}
+			file.close();
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			file = new RandomAccessFile(f, "rw");
+			System.arraycopy(times, start, times, 0, MAX_RECORDS);
+			System.arraycopy(offsets, start, offsets, 0, MAX_RECORDS);
+			size = MAX_RECORDS;
+			trimmed += start;
+			for (int i = 0; i < size; i++) {
+				offsets[i] -= from;
+			}
+		} catch (IOException e) {
+			LOGGER.debug("", e);
+			tmp.delete();
+			try {
+				if (!file.getChannel().isOpen()) {
+					file = new RandomAccessFile(f, "rw");
+				}
+			} catch (IOException e2) {
+				LOGGER.debug("", e2);
+				file = null;
+			}
+		}
+	}
+
+	private File getFile() {
+		return new File(new File(MIRROR_DIR, "device-" + device.instanceNumber),
+				oid.getObjectType().intValue() + "-" + oid.getInstanceNumber() + ".log");
+	}
+
+	private static class Harvested {
+		final long seq;
+		final Encodable record;
+
+		Harvested(long seq, Encodable record) {
+			this.seq = seq;
+			this.record = record;
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.ResponseConsumer;
+import com.serotonin.bacnet4j.ServiceFuture;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+import com.serotonin.bacnet4j.service.acknowledgement.ReadRangeAck;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.BySequenceNumber;
+import com.serotonin.bacnet4j.service.confirmed.ReadRangeRequest.ByTime;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.DateTime;
+import com.serotonin.bacnet4j.type.constructed.SequenceOf;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads a trend log's buffer with several ReadRange requests in flight at once. The first request
+ * finds the record at the start time, and shows how many records fit in a response; the rest of
+ * the buffer is then split into chunks of that many records by sequence number. Records are handed
+ * on in order as soon as every chunk before them has come back. If the chunks take longer than
+ * their requests could, the read stops with the records handed on so far.
+ */
+public class TrendLogReader {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TrendLogReader.class);
+
+	static final int MAX_IN_FLIGHT = 8;
+	private static final int MAX_ATTEMPTS = 2;
+	// Extra time, on top of what the chunks' requests may take, before the read is given up on
+	private static final long WAIT_MARGIN_MILLIS = 5000;
+
+	/**
+	 * Takes the records of the log, in order.
+	 */
+	interface RecordHandler {
+		/**
+		 * @param sequenceNumber the record's sequence number, or -1 if the device didn't give it
+		 * @return false to stop reading
+		 */
+		boolean handle(long sequenceNumber, Encodable record);
+	}
+
+	private final BacnetDevice device;
+	private final ObjectIdentifier oid;
+	private final RecordHandler handler;
+	private final int window;
+	// Chunks that came back ahead of an earlier one, by first sequence number
+	private final TreeMap<Long, Result> arrived = new TreeMap<>();
+	// Chunks to send before moving on, i.e. retries and the remainders of chunks that didn't fit
+	private final Deque<Chunk> resend = new ArrayDeque<>();
+	private int chunkSize;
+	// Sequence number of the first record not handed on yet
+	private long nextSeq;
+	private long nextToSend;
+	// Sequence number past the last record there can be
+	private long limit;
+	private int inFlight = 0;
+	private boolean stopped = false;
+
+	TrendLogReader(BacnetDevice device, ObjectIdentifier oid, RecordHandler handler) {
+		this.device = device;
+		this.oid = oid;
+		this.handler = handler;
+		this.window = Math.max(1, Math.min(MAX_IN_FLIGHT, device.getMaxOutstandingRequests()));
+	}
+
+	/**
+	 * Reads the records from the given time on, returning once all of them have been handled.
+	 *
+	 * @param recordCount how many records the log holds
+	 */
+	void readFromTime(long from, int recordCount) {
+		read(new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null, new ByTime(new DateTime(from), recordCount)),
+				recordCount);
+	}
+
+	/**
+	 * Reads the records from the given sequence number on, returning once all of them have been
+	 * handled.
+	 *
+	 * @param recordCount how many records the log holds
+	 */
+	void readFromSequence(long sequenceNumber, int recordCount) {
+		read(new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null,
+				new BySequenceNumber(sequenceNumber, recordCount)), recordCount);
+	}
+
+	private void read(ReadRangeRequest request, int recordCount) {
+		ReadRangeAck ack = null;
+		try {
+			ServiceFuture sf = Utils.sendConfirmedRequest(device.conn, device, request,
+					RequestGovernor.Priority.BACKGROUND);
+			if (sf != null) {
+				ack = sf.get();
+			}
+		} catch (BACnetException e) {
+			LOGGER.debug("", e);
+		}
+		if (ack == null) {
+			return;
+		}
+		long seq = ack.getFirstSequenceNumber() != null ? ack.getFirstSequenceNumber().longValue() : -1;
+		for (Encodable record : ack.getItemData()) {
+			if (!handler.handle(seq, record)) {
+				return;
+			}
+			if (seq >= 0) {
+				seq++;
+			}
+		}
+		int itemCount = ack.getItemCount().intValue();
+		if (!ack.getResultFlags().isMoreItems() || ack.getFirstSequenceNumber() == null || itemCount <= 0) {
+			return;
+		}
+		long first = ack.getFirstSequenceNumber().longValue();
+		synchronized (this) {
+			chunkSize = itemCount;
+			nextSeq = first + itemCount;
+			nextToSend = nextSeq;
+			limit = first + recordCount;
+		}
+		long deadline;
+		synchronized (this) {
+			// Each round of chunks may take every attempt of a request to time out
+			long chunks = (limit - nextSeq + chunkSize - 1) / chunkSize;
+			long rounds = (chunks + window - 1) / window;
+			long perRequest = (long) device.conn.timeout * (device.conn.retries + 1);
+			deadline = System.currentTimeMillis() + rounds * MAX_ATTEMPTS * perRequest + WAIT_MARGIN_MILLIS;
+		}
+		sendMore();
+		synchronized (this) {
+			try {
+				while (!isFinished()) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						LOGGER.debug("Gave up reading " + oid + " of device " + device.instanceNumber + " at record "
+								+ nextSeq);
+						stopped = true;
+						break;
+					}
+					wait(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				stopped = true;
+			}
+			if (stopped) {
+				arrived.clear();
+				resend.clear();
+			}
+		}
+	}
+
+	private boolean isFinished() {
+		return stopped || nextSeq >= limit;
+	}
+
+	private void sendMore() {
+		while (true) {
+			Chunk chunk;
+			synchronized (this) {
+				if (isFinished() || inFlight >= window) {
+					return;
+				}
+				if (!resend.isEmpty()) {
+					chunk = resend.poll();
+				} else if (nextToSend < limit) {
+					chunk = new Chunk(nextToSend, (int) Math.min(chunkSize, limit - nextToSend));
+					nextToSend += chunk.count;
+				} else {
+					return;
+				}
+				inFlight += 1;
+			}
+			send(chunk);
+		}
+	}
+
+	private void send(Chunk chunk) {
+		LocalDevice ld = device.conn.localDevice.get();
+		RemoteDevice d = device.remoteDevice.get();
+		if (ld == null || d == null) {
+			synchronized (this) {
+				inFlight -= 1;
+				stopped = true;
+				notifyAll();
+			}
+			return;
+		}
+		ReadRangeRequest request = new ReadRangeRequest(oid, PropertyIdentifier.logBuffer, null,
+				new BySequenceNumber(chunk.start, chunk.count));
+		try {
+			device.governor.send(ld, d, request, RequestGovernor.Priority.BACKGROUND, new ResponseConsumer() {
+				@Override
+				public void success(AcknowledgementService ack) {
+					received(chunk, (ReadRangeAck) ack);
+				}
+
+				@Override
+				public void fail(AckAPDU ack) {
+					LOGGER.debug("ReadRange of " + oid + " failed: " + ack);
+					failed(chunk);
+				}
+
+				@Override
+				public void ex(BACnetException e) {
+					LOGGER.debug("", e);
+					failed(chunk);
+				}
+			});
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+			failed(chunk);
+		}
+	}
+
+	private void received(Chunk chunk, ReadRangeAck ack) {
+		synchronized (this) {
+			inFlight -= 1;
+			int itemCount = ack.getItemCount().intValue();
+			long first = ack.getFirstSequenceNumber() != null ? ack.getFirstSequenceNumber().longValue()
+					: chunk.start;
+			long end = chunk.start + chunk.count;
+			if (ack.getResultFlags().isMoreItems()) {
+				if (itemCount > 0 && first + itemCount < end) {
+					// Didn't all fit, so ask for the rest of the chunk separately
+					resend.addFirst(new Chunk(first + itemCount, (int) (end - first - itemCount)));
+					end = first + itemCount;
+				}
+			} else if (itemCount < chunk.count) {
+				// Reached the newest record
+				limit = Math.min(limit, Math.max(chunk.start, first + itemCount));
+			}
+			arrived.put(chunk.start, new Result(first, end, ack.getItemData()));
+			deliver();
+		}
+		sendMore();
+	}
+
+	private void failed(Chunk chunk) {
+		synchronized (this) {
+			inFlight -= 1;
+			if (++chunk.attempts < MAX_ATTEMPTS) {
+				resend.addFirst(chunk);
+			} else {
+				arrived.put(chunk.start, new Result(chunk.start, chunk.start + chunk.count, null));
+				deliver();
+			}
+		}
+		sendMore();
+	}
+
+	/**
+	 * Hands on the records of the chunks that are next in line. Must be called while holding the lock.
+	 */
+	private void deliver() {
+		Result result;
+		while (!stopped && (result = arrived.remove(nextSeq)) != null) {
+			if (result.records != null) {
+				long seq = result.first;
+				for (Encodable record : result.records) {
+					// Records outside the chunk belong to another one, or are past the end of the log
+					if (seq >= nextSeq && seq < result.end && seq < limit && !handler.handle(seq, record)) {
+						stopped = true;
+						break;
+					}
+					seq++;
+				}
+			}
+			nextSeq = result.end;
+		}
+		if (isFinished()) {
+			arrived.clear();
+			resend.clear();
+			notifyAll();
+		}
+	}
+
+	private static class Chunk {
+		final long start;
+		final int count;
+		int attempts = 0;
+
+		Chunk(long start, int count) {
+			this.start = start;
+			this.count = count;
+		}
+	}
+
+	private static class Result {
+		final long first;
+		final long end;
+		final SequenceOf<? extends Encodable> records;
+
+		Result(long first, long end, SequenceOf<? extends Encodable> records) {
+			this.first = first;
+			this.end = end;
+			this.records = records;
+		}
+	}
+}
@@ -50,12 +50,16 @@ import com.serotonin.bacnet4j.type.primitive.SignedInteger;
 import com.serotonin.bacnet4j.type.primitive.Time;
 import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
 import com.serotonin.bacnet4j.util.sero.ArrayUtils;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -71,8 +75,6 @@ import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.node.value.ValueUtils;
 import org.dsa.iot.dslink.util.json.JsonArray;
 import org.dsa.iot.dslink.util.json.JsonObject;
-import org.reflections.Reflections;
-import org.reflections.scanners.MethodParameterNamesScanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -80,7 +82,6 @@ public class TypeUtils {
 	private static final int MAX_RECURSION_DEPTH = 20; //In case of infinite loops, generally should not be necessary
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(TypeUtils.class);
-	private static final Reflections reflections = new Reflections("com.serotonin.bacnet4j", new MethodParameterNamesScanner());
 
 	public static Pair<ValueType, Value> parseEncodable(Encodable enc) {
 		return parseEncodable(enc, MAX_RECURSION_DEPTH);
@@ -471,10 +472,52 @@ public class TypeUtils {
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
-	public static JsonObject parseNonSequenceConstructed(BaseType enc, int maxDepth) {
-		Class<? extends BaseType> clazz = enc.getClass();
-		Set<Method> gets = new HashSet<>();
+	/**
+	 * Getters of a constructed type, along with the is* method that says whether each one applies,
+	 * resolved once per class.
+	 */
+	private static final ClassValue<Accessor[]> accessors = new ClassValue<Accessor[]>() {
+		@Override
+		protected Accessor[] computeValue(Class<?> clazz) {
+			return findAccessors(clazz);
+		}
+	};
+	
+	private static class Accessor {
+		final String key;
+		final MethodHandle getter;
+		final MethodHandle isser;
+		
+		Accessor(String key, MethodHandle getter, MethodHandle isser) {
+			this.key = key;
+			this.getter = getter;
+			this.isser = isser;
+		}
+		
+		Object get(Object target) throws Exception {
+			try {
+				return (Object) getter.invokeExact(target);
+			} catch (Exception | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				// Only because invokeExact is declared to throw anything
+				throw new UndeclaredThrowableException(e);
+			}
+		}
+		
+		boolean is(Object target) throws Exception {
+			try {
+				return (boolean) isser.invokeExact(target);
+			} catch (Exception | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new UndeclaredThrowableException(e);
+			}
+		}
+	}
+	
+	private static Accessor[] findAccessors(Class<?> clazz) {
+		List<Method> gets = new ArrayList<>();
 		Map<String, Method> ises = new HashMap<>();
 		for (Method method: clazz.getMethods()) {
 			String name = method.getName();
@@ -487,23 +530,42 @@ public class TypeUtils {
 			}
 		}
 		
-		if (enc instanceof SpecialEvent) {
+		if (SpecialEvent.class.isAssignableFrom(clazz)) {
 		    ises.remove("ListOfTimeValues");
 		    ises.remove("EventPriority");
 		}
 		
-		JsonObject jobj = new JsonObject();
-		
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		MethodType getterType = MethodType.methodType(Object.class, Object.class);
+		MethodType isserType = MethodType.methodType(boolean.class, Object.class);
+		List<Accessor> found = new ArrayList<>();
 		for (Method getMethod: gets) {
 			String key = getMethod.getName().substring(3);
 			Method isMethod = ises.get(key);
 			if (isMethod == null && key.equals("Data")) {
 				isMethod = ises.get("LogData");
 			}
-			if (isMethod != null) {
+			try {
+				MethodHandle getter = lookup.unreflect(getMethod).asType(getterType);
+				MethodHandle isser = isMethod == null ? null : lookup.unreflect(isMethod).asType(isserType);
+				found.add(new Accessor(key, getter, isser));
+			} catch (IllegalAccessException e) {
+				LOGGER.debug("", e);
+			}
+		}
+		return found.toArray(new Accessor[found.size()]);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static JsonObject parseNonSequenceConstructed(BaseType enc, int maxDepth) {
+		JsonObject jobj = new JsonObject();
+		
+		for (Accessor accessor: accessors.get(enc.getClass())) {
+			String key = accessor.key;
+			if (accessor.isser != null) {
 				boolean isWhatever = false;
 				try {
-					isWhatever = (Boolean) isMethod.invoke(enc);
+					isWhatever = accessor.is(enc);
 				} catch (Exception e) {
 					LOGGER.debug("", e);
 				} 
@@ -512,7 +574,7 @@ public class TypeUtils {
 				}
 			}
 			try {
-				Object o = getMethod.invoke(enc);
+				Object o = accessor.get(enc);
 				if (enc.equals(o)) {
 					continue;
 				}
@@ -604,7 +666,7 @@ public class TypeUtils {
 			List<String> paramList = new ArrayList<>();
 			Set<String> keysetcpy = new HashSet<>(keyset);
 			int badParamCount = 0;
-			for (String paramName: reflections.getConstructorParamNames(constr)) {
+			for (String paramName: ConstructorParamNames.get(constr)) {
 //			    LOGGER.info(param.getName());
 				String name = findIgnoreCase(keysetcpy, paramName);
 				if (name == null) {
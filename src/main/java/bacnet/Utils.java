@@ -1,8 +1,8 @@
 package bacnet;
 
+import com.serotonin.bacnet4j.LocalDevice;
 import com.serotonin.bacnet4j.RemoteDevice;
 import com.serotonin.bacnet4j.ServiceFuture;
-import com.serotonin.bacnet4j.exception.BACnetException;
 import com.serotonin.bacnet4j.npdu.ip.IpNetworkUtils;
 import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
 import com.serotonin.bacnet4j.type.Encodable;
@@ -15,7 +15,6 @@ import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
 import com.serotonin.bacnet4j.type.primitive.OctetString;
 import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
 import com.serotonin.bacnet4j.util.BACnetUtils;
-import com.serotonin.bacnet4j.util.RequestUtils;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -24,6 +23,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import jssc.SerialNativeInterface;
 import jssc.SerialPortList;
@@ -40,6 +44,8 @@ public class Utils {
 	private static final Logger LOGGER = LoggerFactory.getLogger(Utils.class);
 
 	private static final Map<Class<? extends Enumerated>, List<String>> stateLists = new HashMap<>();
+	// Seconds a pool thread is kept with nothing to do
+	private static final long IDLE_THREAD_TIMEOUT = 60;
 
 	static {
 		getObjectTypeList();
@@ -67,52 +73,24 @@ public class Utils {
 	// }
 	// }
 
-	public static ServiceFuture sendConfirmedRequest(BacnetConn conn, BacnetDevice device, ConfirmedRequestService request) {
-		ServiceFuture sf = null;
-		try {
-			device.monitor.checkInReader();
-			if (device.remoteDevice != null) {
-				try {
-					conn.monitor.checkInReader();
-					if (conn.localDevice != null) {
-						sf = conn.localDevice.send(device.remoteDevice, request);
-					}
-					conn.monitor.checkOutReader();
-				} catch (InterruptedException ignored) {
-
-				}
-			}
-			device.monitor.checkOutReader();
-		} catch (InterruptedException ignored) {
-
+	public static ServiceFuture sendConfirmedRequest(BacnetConn conn, BacnetDevice device, ConfirmedRequestService request,
+			RequestGovernor.Priority priority) {
+		RemoteDevice d = device.remoteDevice.get();
+		LocalDevice ld = conn.localDevice.get();
+		if (d == null || ld == null) {
+			return null;
 		}
-		return sf;
+		return device.governor.send(ld, d, request, priority);
 	}
 	
-	public static Encodable readProperty(BacnetConn conn, BacnetDevice device, ObjectIdentifier oid, PropertyIdentifier pid, UnsignedInteger propertyArrayIndex) {
-		Encodable enc = null;
-		try {
-			device.monitor.checkInReader();
-			if (device.remoteDevice != null) {
-				try {
-					conn.monitor.checkInReader();
-					if (conn.localDevice != null) {
-						try {
-							enc = RequestUtils.sendReadPropertyAllowNull(conn.localDevice, device.remoteDevice, oid, pid, propertyArrayIndex, null);
-						} catch (BACnetException e) {
-							LOGGER.debug("", e);
-						}
-					}
-					conn.monitor.checkOutReader();
-				} catch (InterruptedException ignored) {
-
-				}
-			}
-			device.monitor.checkOutReader();
-		} catch (InterruptedException ignored) {
-
+	public static Encodable readProperty(BacnetConn conn, BacnetDevice device, ObjectIdentifier oid, PropertyIdentifier pid, UnsignedInteger propertyArrayIndex,
+			RequestGovernor.Priority priority) {
+		RemoteDevice d = device.remoteDevice.get();
+		LocalDevice ld = conn.localDevice.get();
+		if (d == null || ld == null) {
+			return null;
 		}
-		return enc;
+		return device.governor.readProperty(ld, d, oid, pid, propertyArrayIndex, priority);
 	}
 
 	public static String[] getCommPorts() {
@@ -193,6 +171,18 @@ public class Utils {
 		}
 	}
 
+	/**
+	 * Sets the value of a read-only statistic under the given parent, creating its node if needed.
+	 */
+	public static void setMetric(Node parent, String name, Value value) {
+		Node child = parent.getChild(name, true);
+		if (child == null) {
+			child = parent.createChild(name, true).setValueType(value.getType()).build();
+			child.setSerializable(false);
+		}
+		child.setValue(value);
+	}
+
 	public static Number getAndMaybeSetRoConfigNum(Node node, String config, Number def) {
 		Number retval = safeGetRoConfigNum(node, config, null);
 		if (retval == null) {
@@ -212,15 +202,16 @@ public class Utils {
 	public static Set<String> getDeviceEnum(Map<Integer, RemoteDevice> devices) {
 		Set<String> devStringSet = new HashSet<>();
 		for (Entry<Integer, RemoteDevice> entry : devices.entrySet()) {
-			int id = entry.getKey();
-			RemoteDevice d = entry.getValue();
-			String devString = (d.getDeviceProperty(PropertyIdentifier.objectName) != null ? d.getName() : "")
-					+ " (Instance " + String.valueOf(id) + " at " + d.getAddress() + ")";
-			devStringSet.add(devString);
+			devStringSet.add(getDeviceLabel(entry.getKey(), entry.getValue()));
 		}
 		return devStringSet;
 	}
 
+	public static String getDeviceLabel(int id, RemoteDevice d) {
+		return (d.getDeviceProperty(PropertyIdentifier.objectName) != null ? d.getName() : "")
+				+ " (Instance " + String.valueOf(id) + " at " + d.getAddress() + ")";
+	}
+
 	public static boolean isOneOf(int objectTypeId, ObjectType... types) {
 		for (ObjectType type : types) {
 			if (type.intValue() == objectTypeId)
@@ -233,6 +224,30 @@ public class Utils {
 		return isOneOf(objectType.intValue(), types);
 	}
 
+	/**
+	 * @return a factory for daemon threads named with the prefix and a count
+	 */
+	public static ThreadFactory daemonThreadFactory(String prefix) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * @return a pool of up to the given number of daemon threads, which are stopped once they've
+	 *         been idle for a minute
+	 */
+	public static ThreadPoolExecutor createDaemonExecutor(String prefix, int threads,
+			BlockingQueue<Runnable> queue) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT,
+				TimeUnit.SECONDS, queue, daemonThreadFactory(prefix));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
 	// public static Encodable booleanToEncodable(Boolean b, ObjectIdentifier
 	// oid, PropertyIdentifier pid) {
 	// Class<? extends Encodable> clazz =
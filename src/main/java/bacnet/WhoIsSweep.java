@@ -0,0 +1,162 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.service.unconfirmed.WhoIsRequest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Discovers devices by sending WhoIs requests for one range of instance numbers at a time, at a
+ * limited rate, instead of a single global WhoIs that every device on the internetwork answers at
+ * once. A range that gets many answers is split in two and asked again, since some of the answers
+ * have likely been lost along the way, and a range in which devices that were heard from before
+ * don't answer is asked again, up to a number of retries.
+ */
+public class WhoIsSweep {
+	private static final Logger LOGGER = LoggerFactory.getLogger(WhoIsSweep.class);
+
+	static final int MAX_INSTANCE = 4194302;
+	static final int DEFAULT_RANGE_SIZE = 65536;
+	static final double DEFAULT_RATE = 5;
+	static final int DEFAULT_SPLIT_THRESHOLD = 100;
+	static final int DEFAULT_RETRIES = 2;
+	private static final long CHECK_INTERVAL_MILLIS = 50;
+
+	private final BacnetConn conn;
+	private final int rangeSize;
+	private final long sendInterval;
+	private final int splitThreshold;
+	private final int retries;
+	// When each device was last heard from during the sweep, by instance number
+	private final ConcurrentSkipListMap<Integer, Long> heard = new ConcurrentSkipListMap<>();
+
+	WhoIsSweep(BacnetConn conn, int rangeSize, double rate, int splitThreshold, int retries) {
+		this.conn = conn;
+		this.rangeSize = Math.max(1, rangeSize);
+		this.sendInterval = rate > 0 ? (long) (1000 / rate) : 0;
+		this.splitThreshold = Math.max(1, splitThreshold);
+		this.retries = Math.max(0, retries);
+	}
+
+	void iAmReceived(RemoteDevice d) {
+		heard.put(d.getInstanceNumber(), System.currentTimeMillis());
+	}
+
+	void run(ActionResult event, int low, int high) {
+		Table table = event.getTable();
+		table.setMode(Table.Mode.APPEND);
+		try {
+			sweep(table, Math.max(0, low), Math.min(MAX_INSTANCE, high));
+		} finally {
+			table.close();
+		}
+	}
+
+	private void sweep(Table table, int low, int high) {
+		Deque<Range> queue = new ArrayDeque<>();
+		for (long lo = low; lo <= high; lo += rangeSize) {
+			queue.add(new Range((int) lo, (int) Math.min(high, lo + rangeSize - 1), 1));
+		}
+		List<Range> inFlight = new LinkedList<>();
+		long window = conn.timeout;
+		long lastSent = 0;
+		try {
+			while (!queue.isEmpty() || !inFlight.isEmpty()) {
+				long now = System.currentTimeMillis();
+				if (!queue.isEmpty() && now - lastSent >= sendInterval) {
+					Range range = queue.poll();
+					LocalDevice ld = conn.localDevice.get();
+					if (ld == null) {
+						report(table, range, "Connection down");
+						return;
+					}
+					range.known = conn.getDiscovered().getInstances(range.low, range.high);
+					range.sentAt = now;
+					try {
+						ld.sendGlobalBroadcast(new WhoIsRequest(range.low, range.high));
+					} catch (Exception e) {
+						LOGGER.debug("", e);
+					}
+					inFlight.add(range);
+					lastSent = now;
+				}
+				for (Iterator<Range> it = inFlight.iterator(); it.hasNext();) {
+					Range range = it.next();
+					if (now - range.sentAt >= window) {
+						it.remove();
+						evaluate(table, range, queue);
+					}
+				}
+				Thread.sleep(CHECK_INTERVAL_MILLIS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			table.addRow(Row.make(new Value(low), new Value(high), new Value((Number) null),
+					new Value(heard.size()), new Value("Interrupted")));
+			return;
+		}
+		table.addRow(Row.make(new Value(low), new Value(high), new Value((Number) null), new Value(heard.size()),
+				new Value("Done")));
+	}
+
+	private void evaluate(Table table, Range range, Deque<Range> queue) {
+		Map<Integer, Long> inRange = heard.subMap(range.low, true, range.high, true);
+		int responses = 0;
+		int missing = 0;
+		for (Long at : inRange.values()) {
+			if (at >= range.sentAt) {
+				responses++;
+			}
+		}
+		for (Integer inst : range.known) {
+			Long at = inRange.get(inst);
+			if (at == null || at < range.sentAt) {
+				missing++;
+			}
+		}
+		range.responses = responses;
+		if (responses >= splitThreshold && range.low < range.high) {
+			int mid = range.low + (range.high - range.low) / 2;
+			queue.addFirst(new Range(mid + 1, range.high, 1));
+			queue.addFirst(new Range(range.low, mid, 1));
+			report(table, range, "Split");
+		} else if (missing > 0 && range.attempt <= retries) {
+			queue.addLast(new Range(range.low, range.high, range.attempt + 1));
+			report(table, range, missing + " known devices missing, retrying");
+		} else {
+			report(table, range, "Done");
+		}
+	}
+
+	private static void report(Table table, Range range, String status) {
+		table.addRow(Row.make(new Value(range.low), new Value(range.high), new Value(range.attempt),
+				new Value(range.responses), new Value(status)));
+	}
+
+	private static class Range {
+		final int low;
+		final int high;
+		final int attempt;
+		List<Integer> known;
+		long sentAt;
+		int responses = 0;
+
+		Range(int low, int high, int attempt) {
+			this.low = low;
+			this.high = high;
+			this.attempt = attempt;
+		}
+	}
+}
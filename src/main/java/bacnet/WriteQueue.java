@@ -0,0 +1,308 @@
+package bacnet;
+
+import com.serotonin.bacnet4j.LocalDevice;
+import com.serotonin.bacnet4j.RemoteDevice;
+import com.serotonin.bacnet4j.ResponseConsumer;
+import com.serotonin.bacnet4j.apdu.AckAPDU;
+import com.serotonin.bacnet4j.exception.BACnetException;
+import com.serotonin.bacnet4j.service.acknowledgement.AcknowledgementService;
+import com.serotonin.bacnet4j.service.confirmed.ConfirmedRequestService;
+import com.serotonin.bacnet4j.service.confirmed.WritePropertyMultipleRequest;
+import com.serotonin.bacnet4j.service.confirmed.WritePropertyRequest;
+import com.serotonin.bacnet4j.type.Encodable;
+import com.serotonin.bacnet4j.type.constructed.PropertyValue;
+import com.serotonin.bacnet4j.type.constructed.SequenceOf;
+import com.serotonin.bacnet4j.type.constructed.ServicesSupported;
+import com.serotonin.bacnet4j.type.constructed.WriteAccessSpecification;
+import com.serotonin.bacnet4j.type.enumerated.PropertyIdentifier;
+import com.serotonin.bacnet4j.type.primitive.ObjectIdentifier;
+import com.serotonin.bacnet4j.type.primitive.UnsignedInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a device's writes without blocking the caller. A write that is still waiting to be sent
+ * is replaced by a newer one to the same property at the same priority, so ramping a setpoint
+ * only sends the values the device can keep up with. Writes to a property, at whatever priority,
+ * go out one at a time in the order they were last made, but writes to different properties run
+ * concurrently, up to the device's limit on outstanding requests, and are packed into
+ * WritePropertyMultiple requests where the device supports them.
+ */
+public class WriteQueue {
+	private static final Logger LOGGER = LoggerFactory.getLogger(WriteQueue.class);
+
+	// Most writes packed into one WritePropertyMultiple request
+	static final int MAX_WRITES_PER_REQUEST = 16;
+
+	private final BacnetDevice device;
+	// Writes waiting to be sent, oldest first
+	private final Map<Key, Write> pending = new LinkedHashMap<>();
+	// The write in flight to each property, by property regardless of priority, which the next
+	// write to the property has to wait for
+	private final Map<Key, Write> inFlight = new HashMap<>();
+	// Writes from a refused WritePropertyMultiple, to be sent again one by one
+	private final Deque<Write> singles = new ArrayDeque<>();
+	private int outstanding = 0;
+	// Changes whenever the queue is cleared, so that late responses to writes sent before then are
+	// ignored
+	private long epoch = 0;
+
+	WriteQueue(BacnetDevice device) {
+		this.device = device;
+	}
+
+	/**
+	 * @param priority the priority to write at, or null to write without one
+	 * @param then run once the write has been answered, however many writes were coalesced into
+	 *            it, or null
+	 * @return completes once the device has accepted the write, or the write that replaced it, and
+	 *         completes exceptionally if it was refused or couldn't be sent
+	 */
+	CompletableFuture<Void> submit(ObjectIdentifier oid, PropertyIdentifier pid, Encodable value,
+			UnsignedInteger priority, Runnable then) {
+		Key key = new Key(oid, pid, priority);
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		synchronized (this) {
+			Write write = pending.remove(key);
+			if (write == null) {
+				write = new Write(key, value);
+			} else {
+				write.value = value;
+			}
+			if (then != null) {
+				write.then = then;
+			}
+			write.futures.add(future);
+			// Re-inserted, so it keeps its place behind writes to other properties made since
+			pending.put(key, write);
+		}
+		sendMore();
+		return future;
+	}
+
+	/**
+	 * Fails the writes still waiting to be sent and those awaiting a response, e.g. when the device
+	 * or its connection stops. A terminated LocalDevice may never answer, so writes in flight are
+	 * given up on rather than waited for.
+	 */
+	void clear() {
+		List<Write> dropped;
+		synchronized (this) {
+			dropped = new ArrayList<>(pending.values());
+			dropped.addAll(inFlight.values());
+			pending.clear();
+			inFlight.clear();
+			singles.clear();
+			outstanding = 0;
+			epoch += 1;
+		}
+		for (Write write : dropped) {
+			write.fail(new IllegalStateException("Device stopped"));
+		}
+	}
+
+	private void sendMore() {
+		while (true) {
+			List<Write> batch = new ArrayList<>();
+			long sentEpoch;
+			synchronized (this) {
+				if (outstanding >= Math.max(1, device.getMaxOutstandingRequests())) {
+					return;
+				}
+				int max = supportsWriteMultiple() ? MAX_WRITES_PER_REQUEST : 1;
+				if (!singles.isEmpty()) {
+					batch.add(singles.poll());
+				} else {
+					for (Iterator<Entry<Key, Write>> it = pending.entrySet().iterator(); it.hasNext()
+							&& batch.size() < max;) {
+						Entry<Key, Write> entry = it.next();
+						if (inFlight.putIfAbsent(entry.getKey().getProperty(), entry.getValue()) == null) {
+							it.remove();
+							batch.add(entry.getValue());
+						}
+					}
+				}
+				if (batch.isEmpty()) {
+					return;
+				}
+				outstanding += 1;
+				sentEpoch = epoch;
+			}
+			send(batch, true, sentEpoch);
+		}
+	}
+
+	/**
+	 * @param split whether a refused WritePropertyMultiple should be retried as single writes, to
+	 *            find out which of them the device objects to
+	 */
+	private void send(List<Write> batch, boolean split, long sentEpoch) {
+		LocalDevice ld = device.conn.localDevice.get();
+		RemoteDevice d = device.remoteDevice.get();
+		if (ld == null || d == null) {
+			finish(batch, new IllegalStateException("Device not connected"), sentEpoch);
+			return;
+		}
+		try {
+			device.governor.send(ld, d, makeRequest(batch), RequestGovernor.Priority.COMMAND, new ResponseConsumer() {
+				@Override
+				public void success(AcknowledgementService ack) {
+					completed(batch, null, sentEpoch);
+				}
+
+				@Override
+				public void fail(AckAPDU ack) {
+					refused(batch, split, new IllegalStateException("Write refused: " + ack), sentEpoch);
+				}
+
+				@Override
+				public void ex(BACnetException e) {
+					// A timeout or transport error, which sending the writes one by one wouldn't help
+					LOGGER.debug("Write to device " + device.instanceNumber + " failed", e);
+					completed(batch, e, sentEpoch);
+				}
+			});
+		} catch (Exception e) {
+			LOGGER.debug("", e);
+			finish(batch, e, sentEpoch);
+		}
+	}
+
+	private void refused(List<Write> batch, boolean split, Exception e, long sentEpoch) {
+		LOGGER.debug("Write to device " + device.instanceNumber + " refused", e);
+		if (split && batch.size() > 1) {
+			synchronized (this) {
+				if (sentEpoch != epoch) {
+					return;
+				}
+				outstanding -= 1;
+				singles.addAll(batch);
+			}
+			sendMore();
+			return;
+		}
+		completed(batch, e, sentEpoch);
+	}
+
+	private void completed(List<Write> batch, Exception e, long sentEpoch) {
+		finish(batch, e, sentEpoch);
+		sendMore();
+	}
+
+	/**
+	 * @param e what went wrong, or null if the writes succeeded
+	 */
+	private void finish(List<Write> batch, Exception e, long sentEpoch) {
+		synchronized (this) {
+			if (sentEpoch != epoch) {
+				// Already failed by clear()
+				return;
+			}
+			for (Write write : batch) {
+				inFlight.remove(write.key.getProperty());
+			}
+			outstanding -= 1;
+		}
+		for (Write write : batch) {
+			if (e == null) {
+				write.succeed();
+			} else {
+				write.fail(e);
+			}
+			if (write.then != null) {
+				write.then.run();
+			}
+		}
+	}
+
+	private static ConfirmedRequestService makeRequest(List<Write> batch) {
+		if (batch.size() == 1) {
+			Write write = batch.get(0);
+			return new WritePropertyRequest(write.key.oid, write.key.pid, null, write.value, write.key.priority);
+		}
+		Map<ObjectIdentifier, List<PropertyValue>> byObject = new LinkedHashMap<>();
+		for (Write write : batch) {
+			byObject.computeIfAbsent(write.key.oid, k -> new ArrayList<>())
+					.add(new PropertyValue(write.key.pid, null, write.value, write.key.priority));
+		}
+		List<WriteAccessSpecification> specs = new ArrayList<>(byObject.size());
+		for (Entry<ObjectIdentifier, List<PropertyValue>> entry : byObject.entrySet()) {
+			specs.add(new WriteAccessSpecification(entry.getKey(), new SequenceOf<>(entry.getValue())));
+		}
+		return new WritePropertyMultipleRequest(new SequenceOf<>(specs));
+	}
+
+	private boolean supportsWriteMultiple() {
+		RemoteDevice d = device.remoteDevice.get();
+		ServicesSupported services = d != null ? d.getServicesSupported() : null;
+		return services != null && services.isWritePropertyMultiple();
+	}
+
+	private static class Key {
+		final ObjectIdentifier oid;
+		final PropertyIdentifier pid;
+		final UnsignedInteger priority;
+
+		Key(ObjectIdentifier oid, PropertyIdentifier pid, UnsignedInteger priority) {
+			this.oid = oid;
+			this.pid = pid;
+			this.priority = priority;
+		}
+
+		/**
+		 * @return the key of the property written to, whatever the priority
+		 */
+		Key getProperty() {
+			return new Key(oid, pid, null);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return oid.equals(other.oid) && pid.equals(other.pid) && Objects.equals(priority, other.priority);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(oid, pid, priority);
+		}
+	}
+
+	private static class Write {
+		final Key key;
+		final List<CompletableFuture<Void>> futures = new ArrayList<>(1);
+		Encodable value;
+		Runnable then;
+
+		Write(Key key, Encodable value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		void succeed() {
+			for (CompletableFuture<Void> future : futures) {
+				future.complete(null);
+			}
+		}
+
+		void fail(Throwable e) {
+			for (CompletableFuture<Void> future : futures) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+}